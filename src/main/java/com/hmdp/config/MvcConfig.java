@@ -1,5 +1,6 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.CacheMetrics;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
 import org.springframework.context.annotation.Configuration;
@@ -13,6 +14,8 @@ import javax.annotation.Resource;
 public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheMetrics cacheMetrics;
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
@@ -27,6 +30,6 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/upload/**",
                         "/voucher/**").order(1);
         //token刷新拦截器
-        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
+        registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate, cacheMetrics)).addPathPatterns("/**").order(0);
     }
 }
@@ -0,0 +1,85 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.service.IShopWarmUpService;
+import com.hmdp.utils.CacheMetrics;
+import com.hmdp.utils.CacheRebuildScheduler;
+import com.hmdp.utils.HotKeyDetector;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ *  缓存运行状态
+ * </p>
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private CacheRebuildScheduler rebuildScheduler;
+    @Resource
+    private CacheMetrics cacheMetrics;
+    @Resource
+    private IShopWarmUpService shopWarmUpService;
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    /**
+     * 上一个统计窗口内各key前缀的热点key
+     * @return
+     */
+    @GetMapping("hot-keys")
+    public Result queryHotKeys() {
+        return Result.ok(hotKeyDetector.topKeys());
+    }
+
+    /**
+     * 各key前缀的命中率和数据库加载耗时分布
+     * @return
+     */
+    @GetMapping("metrics")
+    public Result queryMetrics() {
+        return Result.ok(cacheMetrics.snapshot());
+    }
+
+    /**
+     * 在后台预热店铺缓存
+     * @return 预热进度
+     */
+    @PostMapping("warm-up/shop")
+    public Result warmUpShop() {
+        return shopWarmUpService.warmUp();
+    }
+
+    @GetMapping("warm-up/shop")
+    public Result queryShopWarmUp() {
+        return shopWarmUpService.queryProgress();
+    }
+
+    /**
+     * 修改店铺类型后调用，所有节点重新加载店铺类型快照
+     * @return 新的版本号
+     */
+    @PostMapping("shop-type/refresh")
+    public Result refreshShopType() {
+        return shopTypeService.refreshTypeList();
+    }
+
+    /**
+     * 缓存重建线程池的队列长度、任务数和耗时
+     * @return
+     */
+    @GetMapping("rebuild")
+    public Result queryRebuildStats() {
+        return Result.ok(rebuildScheduler.stats());
+    }
+}
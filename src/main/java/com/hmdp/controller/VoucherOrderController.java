@@ -2,10 +2,14 @@ package com.hmdp.controller;
 
 
 import com.hmdp.dto.Result;
+import com.hmdp.service.ISeckillReconcileService;
+import com.hmdp.service.ISeckillWarmUpService;
 import com.hmdp.service.IVoucherOrderService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
@@ -20,9 +24,33 @@ import javax.annotation.Resource;
 public class VoucherOrderController {
     @Resource
     private IVoucherOrderService voucherOrderService;
+    @Resource
+    private ISeckillReconcileService reconcileService;
+    @Resource
+    private ISeckillWarmUpService warmUpService;
 
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    @GetMapping("{id}/status")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
+
+    @PostMapping("reconcile")
+    public Result reconcile(@RequestParam(value = "repair", defaultValue = "false") Boolean repair) {
+        return reconcileService.reconcile(repair);
+    }
+
+    @PostMapping("warm-up")
+    public Result warmUp() {
+        return warmUpService.warmUp();
+    }
+
+    @GetMapping("consumers")
+    public Result queryConsumerStats() {
+        return voucherOrderService.queryConsumerStats();
+    }
 }
@@ -0,0 +1,52 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.Map;
+
+/**
+ * 一个key前缀的缓存统计
+ */
+@Data
+public class CacheMetricsSnapshot {
+    /**
+     * key前缀
+     */
+    private String prefix;
+    /**
+     * 本地缓存命中次数
+     */
+    private Long localHits;
+    /**
+     * redis命中次数
+     */
+    private Long hits;
+    /**
+     * 命中空值的次数
+     */
+    private Long nullHits;
+    /**
+     * 未命中的次数
+     */
+    private Long misses;
+    /**
+     * 命中率（本地、redis和空值命中之和占全部请求的比例）
+     */
+    private Double hitRate;
+    /**
+     * 查询数据库的次数
+     */
+    private Long loads;
+    /**
+     * 查询数据库失败的次数
+     */
+    private Long loadErrors;
+    /**
+     * 查询数据库的平均耗时（毫秒）
+     */
+    private Double avgLoadMillis;
+    /**
+     * 查询数据库耗时的分布，key为区间上限，如"<=10ms"
+     */
+    private Map<String, Long> loadLatency;
+}
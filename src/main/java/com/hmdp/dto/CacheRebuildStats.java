@@ -0,0 +1,46 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+/**
+ * 缓存重建线程池运行状态
+ */
+@Data
+public class CacheRebuildStats {
+    /**
+     * 排队中的重建任务数
+     */
+    private Integer queueSize;
+    /**
+     * 正在执行的重建任务数
+     */
+    private Integer active;
+    /**
+     * 已提交的任务数
+     */
+    private Long submitted;
+    /**
+     * 成功完成的任务数
+     */
+    private Long completed;
+    /**
+     * 执行失败的任务数
+     */
+    private Long failed;
+    /**
+     * 同一个key已有任务在排队或执行而跳过的次数
+     */
+    private Long deduplicated;
+    /**
+     * 队列已满而跳过的次数
+     */
+    private Long rejected;
+    /**
+     * 平均重建耗时（毫秒）
+     */
+    private Double avgLatencyMillis;
+    /**
+     * 最大重建耗时（毫秒）
+     */
+    private Long maxLatencyMillis;
+}
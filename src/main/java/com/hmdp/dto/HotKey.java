@@ -0,0 +1,16 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 热点key及其在统计窗口内的估算访问次数
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HotKey {
+    private String key;
+    private Long count;
+}
@@ -0,0 +1,38 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+/**
+ * 订单消费者运行状态
+ */
+@Data
+public class OrderConsumerStats {
+    /**
+     * 消费者名称
+     */
+    private String consumerName;
+    /**
+     * 已确认的订单数
+     */
+    private Long processed;
+    /**
+     * 处理失败的订单数
+     */
+    private Long failed;
+    /**
+     * 已处理的批次数
+     */
+    private Long batches;
+    /**
+     * 启动以来的平均吞吐量（单/秒）
+     */
+    private Double ordersPerSecond;
+    /**
+     * 最近一批消息从入队到处理完成的延迟（毫秒）
+     */
+    private Long lagMillis;
+    /**
+     * 已投递未确认的消息数
+     */
+    private Long pending;
+}
@@ -0,0 +1,51 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 单张秒杀券的redis与数据库对账结果
+ */
+@Data
+public class SeckillReconcileResult {
+    private Long voucherId;
+    /**
+     * redis中还没有该券的库存
+     */
+    private Boolean redisMissing;
+    /**
+     * redis下单集合中的用户数
+     */
+    private Long redisOrders;
+    /**
+     * 数据库中的订单数
+     */
+    private Long dbOrders;
+    /**
+     * redis有记录但数据库没有订单的用户数
+     */
+    private Long missingInDb;
+    /**
+     * 数据库有订单但redis没有记录的用户数
+     */
+    private Long missingInRedis;
+    /**
+     * 缺失订单的部分用户id，便于排查
+     */
+    private List<Long> sampleUserIds;
+    private Long redisStock;
+    private Long dbStock;
+    /**
+     * (redis库存+redis订单)-(数据库库存+数据库订单)，正常应为0
+     */
+    private Long stockDiff;
+    /**
+     * 是否已修复
+     */
+    private Boolean repaired;
+    /**
+     * 对账或修复失败的原因，为空表示正常完成
+     */
+    private String error;
+}
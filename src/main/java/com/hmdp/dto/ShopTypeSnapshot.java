@@ -0,0 +1,25 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.ShopType;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 店铺类型列表的内存快照，包含预先序列化好的响应
+ */
+@Data
+@AllArgsConstructor
+public class ShopTypeSnapshot {
+    /**
+     * 对应redis中的版本号
+     */
+    private Long version;
+    private List<ShopType> types;
+    /**
+     * Result.ok(types)序列化后的json
+     */
+    private byte[] body;
+    private String etag;
+}
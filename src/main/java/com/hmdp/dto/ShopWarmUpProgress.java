@@ -0,0 +1,38 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+/**
+ * 店铺缓存预热进度
+ */
+@Data
+public class ShopWarmUpProgress {
+    /**
+     * 是否正在执行
+     */
+    private Boolean running;
+    /**
+     * 店铺总数
+     */
+    private Long total;
+    /**
+     * 已写入缓存的店铺数
+     */
+    private Long loaded;
+    /**
+     * 执行失败的分段数
+     */
+    private Integer failedSegments;
+    /**
+     * 开始时间（毫秒）
+     */
+    private Long startTime;
+    /**
+     * 已耗时（毫秒）
+     */
+    private Long costMillis;
+    /**
+     * 平均速度（店铺/秒）
+     */
+    private Double shopsPerSecond;
+}
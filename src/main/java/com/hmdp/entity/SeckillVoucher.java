@@ -37,6 +37,11 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * 库存分片数，大于1时库存拆分到多个redis key
+     */
+    private Integer stockShards;
+
     /**
      * 创建时间
      */
@@ -0,0 +1,24 @@
+package com.hmdp.service;
+
+import com.hmdp.entity.CacheOutbox;
+import com.baomidou.mybatisplus.extension.service.IService;
+
+/**
+ * <p>
+ *  服务类
+ * </p>
+ */
+public interface ICacheOutboxService extends IService<CacheOutbox> {
+
+    /**
+     * 在当前事务中记录要删除的缓存key，事务提交后异步删除
+     * @param keys
+     */
+    void record(String... keys);
+
+    /**
+     * 处理到期的发件箱记录
+     * @return 处理的记录数
+     */
+    int process();
+}
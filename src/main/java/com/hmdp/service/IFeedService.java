@@ -0,0 +1,28 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.ScrollResult;
+
+/**
+ * <p>
+ *  关注流推送
+ * </p>
+ */
+public interface IFeedService {
+
+    /**
+     * 在当前事务中记录推送任务，提交后把笔记异步推送到作者所有粉丝的收件箱
+     * 推送进度记录在redis中，中断后可以继续
+     * @param authorId
+     * @param blogId
+     */
+    void publish(Long authorId, Long blogId);
+
+    /**
+     * 滚动查询关注流，合并自己的收件箱和关注的大V的发件箱
+     * @param userId
+     * @param max 上一页最小时间戳
+     * @param offset 上一页中与最小时间戳相同的条数
+     * @return list为按时间倒序的笔记id
+     */
+    ScrollResult queryFeed(Long userId, Long max, Integer offset);
+}
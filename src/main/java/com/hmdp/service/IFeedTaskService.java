@@ -0,0 +1,13 @@
+package com.hmdp.service;
+
+import com.hmdp.entity.FeedTask;
+import com.baomidou.mybatisplus.extension.service.IService;
+
+/**
+ * <p>
+ *  服务类
+ * </p>
+ */
+public interface IFeedTaskService extends IService<FeedTask> {
+
+}
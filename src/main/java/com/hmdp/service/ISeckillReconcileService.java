@@ -0,0 +1,13 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.Result;
+
+/**
+ * <p>
+ *  秒杀redis状态与数据库订单对账
+ * </p>
+ */
+public interface ISeckillReconcileService {
+
+    Result reconcile(boolean repair);
+}
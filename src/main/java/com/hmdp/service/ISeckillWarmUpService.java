@@ -0,0 +1,13 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.Result;
+
+/**
+ * <p>
+ *  秒杀库存与下单记录预热
+ * </p>
+ */
+public interface ISeckillWarmUpService {
+
+    Result warmUp();
+}
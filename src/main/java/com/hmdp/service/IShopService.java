@@ -17,4 +17,8 @@ public interface IShopService extends IService<Shop> {
     Result queryById(Long id) throws InterruptedException;
 
     Result update(Shop shop);
+
+    Result saveShop(Shop shop);
+
+    long rebuildBloomFilter();
 }
@@ -1,6 +1,7 @@
 package com.hmdp.service;
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -15,4 +16,16 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IShopTypeService extends IService<ShopType> {
 
     Result queryTypeList();
+
+    /**
+     * 获取店铺类型的内存快照
+     * @return 没有数据时返回null
+     */
+    ShopTypeSnapshot getSnapshot();
+
+    /**
+     * 店铺类型修改后调用，通知所有节点刷新快照
+     * @return 新的版本号
+     */
+    Result refreshTypeList();
 }
@@ -0,0 +1,19 @@
+package com.hmdp.service;
+
+import com.hmdp.dto.Result;
+
+/**
+ * <p>
+ *  店铺缓存预热
+ * </p>
+ */
+public interface IShopWarmUpService {
+
+    /**
+     * 在后台开始预热，已有任务在执行时返回失败
+     * @return
+     */
+    Result warmUp();
+
+    Result queryProgress();
+}
@@ -8,28 +8,34 @@ import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
-import com.hmdp.entity.Follow;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.service.IFollowService;
+import com.hmdp.service.IFeedService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HotKeyDetector;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
-import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
-import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_TTL;
 
 /**
  * <p>
@@ -43,7 +49,11 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
-    private IFollowService followService;
+    private IFeedService feedService;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private CacheClient cacheClient;
 
     @Override
     public Result queryHotBlog(Integer current) {
@@ -53,11 +63,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        // 批量查询用户和点赞状态
+        hydrate(records);
         return Result.ok(records);
     }
 
@@ -67,21 +74,63 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if(blog==null){
             return Result.fail("笔记不存在！");
         }
-        queryBlogUser(blog);
-        //查询blog是否被点赞
-        isBlogLiked(blog);
+        //查询作者和blog是否被点赞
+        hydrate(Collections.singletonList(blog));
         return Result.ok(blog);
     }
 
-    private void isBlogLiked(Blog blog) {
+    /**
+     * 批量填充笔记的作者信息和当前用户的点赞状态，一页只查询一次数据库和一次redis
+     * @param blogs
+     */
+    private void hydrate(List<Blog> blogs) {
+        if(blogs.isEmpty()){
+            return;
+        }
+        //1.一次MGET查询作者缓存，未命中的作者一次查询数据库
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).distinct().collect(Collectors.toList());
+        List<UserDTO> authors = cacheClient.queryBatchWithPassThrough(CACHE_USER_KEY, userIds, UserDTO.class,
+                this::queryAuthors, CACHE_USER_TTL, TimeUnit.MINUTES);
+        Map<Long, UserDTO> users = new HashMap<>(userIds.size());
+        for (int i = 0; i < userIds.size(); i++) {
+            users.put(userIds.get(i), authors.get(i));
+        }
+        for (Blog blog : blogs) {
+            UserDTO author = users.get(blog.getUserId());
+            if(author!=null){
+                blog.setName(author.getNickName());
+                blog.setIcon(author.getIcon());
+            }
+        }
+        //2.未登录时不查询点赞状态
         UserDTO user=UserHolder.getUser();
         if(user==null){
             return;
         }
-        Long userId=user.getId();
-        String key="blog:liked"+blog.getId();
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        blog.setIsLike(score!=null);
+        String userId=user.getId().toString();
+        //3.一次pipeline查询所有笔记的点赞状态
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Blog blog : blogs) {
+                String key=BLOG_LIKED_KEY+blog.getId();
+                hotKeyDetector.record(BLOG_LIKED_KEY, key);
+                conn.zScore(key, userId);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i)!=null);
+        }
+    }
+
+    /**
+     * 根据id批量查询作者，只缓存昵称和头像
+     * @param userIds
+     * @return
+     */
+    private Map<Long, UserDTO> queryAuthors(List<Long> userIds) {
+        return userService.listByIds(userIds).stream()
+                .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class)));
     }
 
     /**
@@ -94,6 +143,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         //获取登录用户
         Long userId = UserHolder.getUser().getId();
         String key=BLOG_LIKED_KEY+id;
+        hotKeyDetector.record(BLOG_LIKED_KEY, key);
         //判断当前登录用户是否已经点赞
         Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
         //如果未点赞，可以点赞
@@ -114,6 +164,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Override
     public Result queryBlogLikes(Long id) {
         String key=BLOG_LIKED_KEY+id;
+        hotKeyDetector.record(BLOG_LIKED_KEY, key);
         //查询top5的点赞用户
         Set<String> top5 = stringRedisTemplate.opsForZSet().range(key, 0, 4);
         if(top5==null||top5.isEmpty()){
@@ -132,6 +183,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     }
 
     @Override
+    @Transactional
     public Result saveBlog(Blog blog) {
         UserDTO user=UserHolder.getUser();
         blog.setUserId(user.getId());
@@ -139,16 +191,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if(!isSuccess){
             return Result.fail("新增笔记失败");
         }
-        //查询笔记作者的所有粉丝
-        List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
-        //推送笔记id给所有粉丝
-        for(Follow follow:follows){
-            //获取粉丝id
-            Long userId = follow.getUserId();
-            //推送
-            String key=FEED_KEY+userId;
-            stringRedisTemplate.opsForZSet().add(key,blog.getId().toString(),System.currentTimeMillis());
-        }
+        //在同一个事务中记录推送任务，提交后异步推送笔记id给所有粉丝
+        feedService.publish(user.getId(), blog.getId());
         //返回id
         return Result.ok(blog.getId());
     }
@@ -157,46 +201,19 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     public Result queryBlogOfFollow(Long max, Integer offset) {
         //获取当前用户
         Long userId = UserHolder.getUser().getId();
-        //查询收件箱
-        String key=FEED_KEY+userId;
-        Set<ZSetOperations.TypedTuple<String>> typedTuples = stringRedisTemplate.opsForZSet()
-                .reverseRangeByScoreWithScores(key, 0, max, offset, 2);
-        if(typedTuples==null||typedTuples.isEmpty()){
+        //合并收件箱和关注的大V的发件箱：blogId、minTime(时间戳)、offset
+        ScrollResult r = feedService.queryFeed(userId, max, offset);
+        @SuppressWarnings("unchecked")
+        List<Long> ids = (List<Long>) r.getList();
+        if(ids.isEmpty()){
             return Result.ok(Collections.emptyList());
         }
-        //解析数据：blogId、minTime(时间戳)、offset
-        List<Long> ids=new ArrayList<>(typedTuples.size());
-        long minTime=0;
-        int os=1;
-        for(ZSetOperations.TypedTuple<String> typedTuple:typedTuples){
-            ids.add(Long.valueOf(typedTuple.getValue()));
-            long time=typedTuple.getScore().longValue();
-            if(time==minTime){
-                os++;
-            }else {
-                minTime=time;
-                os=1;
-            }
-        }
         //根据id查询blog
         String idStr = StrUtil.join(",", ids);
         List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        for (Blog blog : blogs) {
-            queryBlogUser(blog);
-            isBlogLiked(blog);
-        }
+        hydrate(blogs);
 
-        ScrollResult r=new ScrollResult();
         r.setList(blogs);
-        r.setOffset(offset);
-        r.setMinTime(minTime);
         return Result.ok(r);
     }
-
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
-    }
 }
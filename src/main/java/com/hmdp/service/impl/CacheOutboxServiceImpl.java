@@ -0,0 +1,130 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import com.hmdp.service.ICacheOutboxService;
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ *  缓存删除发件箱：业务事务中写入要删除的key，事务提交后异步批量删除，一段时间后再删除一次
+ *  提交后立即触发一次处理，定时任务兜底处理失败或未触发的记录；多个节点重复删除不影响结果
+ * </p>
+ */
+@Slf4j
+@Service
+public class CacheOutboxServiceImpl extends ServiceImpl<CacheOutboxMapper, CacheOutbox> implements ICacheOutboxService {
+    private static final int STATUS_PENDING = 0;
+    private static final int STATUS_DELETED_ONCE = 1;
+
+    @Resource
+    private CacheClient cacheClient;
+    @Value("${hmdp.cache.outbox.batch-size:500}")
+    private int batchSize;
+    //延迟双删的间隔，需要大于一次读数据库加写缓存的耗时
+    @Value("${hmdp.cache.outbox.second-delete-delay-ms:1000}")
+    private long secondDeleteDelayMillis;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "cache-outbox"));
+    //是否已有待执行的处理任务
+    private final AtomicBoolean triggered = new AtomicBoolean();
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdown();
+    }
+
+    @Override
+    public void record(String... keys) {
+        LocalDateTime now = LocalDateTime.now();
+        List<CacheOutbox> rows = new ArrayList<>(keys.length);
+        for (String key : keys) {
+            rows.add(new CacheOutbox().setCacheKey(key).setStatus(STATUS_PENDING).setNextTime(now));
+        }
+        saveBatch(rows);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            trigger();
+            return;
+        }
+        //事务提交后再删除缓存，回滚时记录也一起回滚
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                trigger();
+            }
+        });
+    }
+
+    private void trigger() {
+        if (!triggered.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(() -> {
+            triggered.set(false);
+            try {
+                process();
+            } catch (Exception e) {
+                log.error("处理缓存删除发件箱失败", e);
+            }
+        });
+    }
+
+    @Override
+    @Scheduled(fixedDelayString = "${hmdp.cache.outbox.poll-ms:1000}")
+    public synchronized int process() {
+        int count = 0;
+        //1.第一次删除，删除后等待延迟双删
+        List<CacheOutbox> pending = query()
+                .eq("status", STATUS_PENDING)
+                .orderByAsc("id")
+                .last("limit " + batchSize)
+                .list();
+        if (!pending.isEmpty()) {
+            cacheClient.deleteAll(keys(pending));
+            update().set("status", STATUS_DELETED_ONCE)
+                    .set("next_time", LocalDateTime.now().plus(secondDeleteDelayMillis, ChronoUnit.MILLIS))
+                    .in("id", ids(pending))
+                    .update();
+            count += pending.size();
+        }
+        //2.延迟双删，删除期间被旧数据回填的缓存，完成后删除记录
+        List<CacheOutbox> due = query()
+                .eq("status", STATUS_DELETED_ONCE)
+                .le("next_time", LocalDateTime.now())
+                .orderByAsc("id")
+                .last("limit " + batchSize)
+                .list();
+        if (!due.isEmpty()) {
+            cacheClient.deleteAll(keys(due));
+            removeByIds(ids(due));
+            count += due.size();
+        }
+        return count;
+    }
+
+    private List<String> keys(List<CacheOutbox> rows) {
+        return rows.stream().map(CacheOutbox::getCacheKey).distinct().collect(Collectors.toList());
+    }
+
+    private List<Long> ids(List<CacheOutbox> rows) {
+        return rows.stream().map(CacheOutbox::getId).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,410 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.entity.FeedTask;
+import com.hmdp.entity.Follow;
+import com.hmdp.service.IFeedService;
+import com.hmdp.service.IFeedTaskService;
+import com.hmdp.service.IFollowService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static com.hmdp.utils.RedisScripts.RENEW_SCRIPT;
+import static com.hmdp.utils.RedisScripts.UNLOCK_SCRIPT;
+
+/**
+ * <p>
+ *  推拉结合的关注流
+ *  普通作者使用推模式：发布笔记时在同一个事务中写入任务记录，提交后登记到redis，
+ *  由后台线程按主键游标分批读取粉丝，
+ *  每批用一次pipeline写入粉丝收件箱并裁剪长度，同时记录推送到的位置
+ *  未完成的任务保存在redis中，启动时和定时任务会继续推送，重复推送不影响结果
+ *  粉丝数达到阈值的大V使用拉模式：笔记只写入自己的发件箱，读者查询时合并收件箱和关注的大V的发件箱
+ *  限制：作者一旦成为大V不再退回推模式；发件箱只保留最近outbox-max-size篇，
+ *  关注流向下滚动时大V更早的笔记不再出现，而普通作者的笔记仍受收件箱长度inbox-max-size限制
+ * </p>
+ */
+@Slf4j
+@Service
+public class FeedServiceImpl implements IFeedService, ApplicationRunner {
+    @Resource
+    private IFollowService followService;
+    @Resource
+    private IFeedTaskService feedTaskService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Value("${hmdp.feed.fanout-threads:2}")
+    private int threads;
+    @Value("${hmdp.feed.fanout-queue-capacity:1000}")
+    private int queueCapacity;
+    //每批读取的粉丝数
+    @Value("${hmdp.feed.chunk-size:1000}")
+    private int chunkSize;
+    //收件箱最多保留的笔记数
+    @Value("${hmdp.feed.inbox-max-size:1000}")
+    private int inboxMaxSize;
+    //推送任务锁的过期时间，每推送一批续期一次
+    @Value("${hmdp.feed.lock-ttl-seconds:60}")
+    private long lockTtlSeconds;
+    //重新登记推送任务的间隔
+    @Value("${hmdp.feed.task-relay-ms:5000}")
+    private long taskRelayMillis;
+    //粉丝数达到该值的作者只写发件箱，由粉丝拉取
+    @Value("${hmdp.feed.big-author-threshold:5000}")
+    private long bigAuthorThreshold;
+    //发件箱最多保留的笔记数
+    @Value("${hmdp.feed.outbox-max-size:1000}")
+    private int outboxMaxSize;
+    //关注流每页条数
+    private static final int PAGE_SIZE = 2;
+    //按时间倒序，时间相同时按id倒序，与redis的ZREVRANGEBYSCORE一致
+    private static final Comparator<ZSetOperations.TypedTuple<String>> FEED_ORDER =
+            Comparator.comparing((ZSetOperations.TypedTuple<String> t) -> t.getScore()).reversed()
+                    .thenComparing(ZSetOperations.TypedTuple::getValue, Comparator.reverseOrder());
+
+    private ThreadPoolExecutor executor;
+    //本节点正在排队或执行的笔记id
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger index = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread thread = new Thread(r, "feed-fanout-" + index.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @PreDestroy
+    private void destroy() {
+        //未完成的任务保存在redis中，下次启动继续
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void publish(Long authorId, Long blogId) {
+        //在笔记的事务中写入任务记录，提交后再登记到redis，两步之间进程退出时由定时任务补登记
+        FeedTask task = new FeedTask().setBlogId(blogId).setAuthorId(authorId);
+        feedTaskService.save(task);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            dispatch(task);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                dispatch(task);
+            }
+        });
+    }
+
+    /**
+     * 定时把没有登记到redis的任务记录重新登记
+     * 只处理创建时间早于一个间隔的记录，刚提交的记录由提交后的回调登记
+     */
+    @Scheduled(fixedDelayString = "${hmdp.feed.task-relay-ms:5000}", initialDelayString = "${hmdp.feed.task-relay-ms:5000}")
+    public void relayTasks() {
+        List<FeedTask> tasks = feedTaskService.query()
+                .le("create_time", LocalDateTime.now().minus(taskRelayMillis, ChronoUnit.MILLIS))
+                .orderByAsc("id")
+                .last("limit " + chunkSize)
+                .list();
+        tasks.forEach(this::dispatch);
+    }
+
+    /**
+     * 把任务登记到redis并开始推送，成功后删除任务记录，失败时保留记录等待重试
+     * 重复登记不会重置已有的推送进度
+     */
+    void dispatch(FeedTask feedTask) {
+        Long authorId = feedTask.getAuthorId();
+        String blogIdStr = feedTask.getBlogId().toString();
+        //以任务创建时间作为笔记的时间，重试时笔记在关注流中的位置不变
+        long time = feedTask.getCreateTime() == null ? System.currentTimeMillis()
+                : feedTask.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        try {
+            Long followers = followService.query().eq("follow_user_id", authorId).count();
+            if (followers != null && followers >= bigAuthorThreshold) {
+                //大V只写发件箱，并登记为大V，之后不再移出，保证旧笔记仍能被拉取到
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    String key = FEED_OUTBOX_KEY + authorId;
+                    conn.zAdd(key, time, blogIdStr);
+                    conn.zRemRange(key, 0, -outboxMaxSize - 1);
+                    conn.sAdd(FEED_BIG_AUTHORS_KEY, authorId.toString());
+                    return null;
+                });
+            } else {
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    String taskKey = FEED_FANOUT_KEY + blogIdStr;
+                    conn.hSetNX(taskKey, "authorId", authorId.toString());
+                    conn.hSetNX(taskKey, "time", String.valueOf(time));
+                    conn.hSetNX(taskKey, "lastFollowId", "0");
+                    conn.sAdd(FEED_FANOUT_PENDING_KEY, blogIdStr);
+                    return null;
+                });
+                submit(blogIdStr);
+            }
+            feedTaskService.removeById(feedTask.getId());
+        } catch (Exception e) {
+            log.error("登记推送任务失败，稍后重试, blogId:{}", blogIdStr, e);
+        }
+    }
+
+    @Override
+    public ScrollResult queryFeed(Long userId, Long max, Integer offset) {
+        //1.找出关注的大V，关注集合没有从数据库加载过时先加载
+        //关注时会直接SADD，集合存在不代表完整，因此用单独的标记判断
+        String followsKey = "follows:" + userId;
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(FOLLOWS_LOADED_KEY + userId))) {
+            loadFollows(userId, followsKey);
+        }
+        Set<String> bigAuthors = stringRedisTemplate.opsForSet().intersect(followsKey, FEED_BIG_AUTHORS_KEY);
+        List<String> keys = new ArrayList<>();
+        keys.add(FEED_KEY + userId);
+        if (bigAuthors != null) {
+            bigAuthors.forEach(authorId -> keys.add(FEED_OUTBOX_KEY + authorId));
+        }
+        //2.一次pipeline从每个来源取前offset+PAGE_SIZE条，合并后的前offset+PAGE_SIZE条一定在其中
+        int limit = offset + PAGE_SIZE;
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String key : keys) {
+                conn.zRevRangeByScoreWithScores(key, 0, max, 0, limit);
+            }
+            return null;
+        });
+        //3.多路归并，跳过上一页已经返回过的offset条
+        PriorityQueue<Cursor> heap = new PriorityQueue<>((a, b) -> FEED_ORDER.compare(a.head, b.head));
+        for (Object result : results) {
+            @SuppressWarnings("unchecked")
+            Set<ZSetOperations.TypedTuple<String>> tuples = (Set<ZSetOperations.TypedTuple<String>>) result;
+            if (tuples != null && !tuples.isEmpty()) {
+                Iterator<ZSetOperations.TypedTuple<String>> it = tuples.iterator();
+                heap.add(new Cursor(it.next(), it));
+            }
+        }
+        List<Long> ids = new ArrayList<>(PAGE_SIZE);
+        String last = null;
+        int skipped = 0;
+        long minTime = 0;
+        int os = 0;
+        while (!heap.isEmpty() && ids.size() < PAGE_SIZE) {
+            Cursor cursor = heap.poll();
+            ZSetOperations.TypedTuple<String> tuple = cursor.head;
+            if (cursor.advance()) {
+                heap.add(cursor);
+            }
+            //同一篇笔记可能同时在收件箱和发件箱中，相等的元素在归并结果中相邻
+            if (tuple.getValue().equals(last)) {
+                continue;
+            }
+            last = tuple.getValue();
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            ids.add(Long.valueOf(tuple.getValue()));
+            long time = tuple.getScore().longValue();
+            if (time == minTime) {
+                os++;
+            } else {
+                minTime = time;
+                os = 1;
+            }
+        }
+        //4.本页最小时间戳与上一页相同时，下次还要跳过上一页的offset条
+        if (minTime == max) {
+            os += offset;
+        }
+        ScrollResult r = new ScrollResult();
+        r.setList(ids);
+        r.setMinTime(minTime);
+        r.setOffset(os);
+        return r;
+    }
+
+    /**
+     * 从tb_follow加载用户的关注列表写入redis，并写入已加载的标记
+     * 没有关注任何人时同样写入标记，避免每次滚动都查询数据库；标记过期后重新加载
+     */
+    private void loadFollows(Long userId, String followsKey) {
+        String[] followUserIds = followService.query()
+                .select("follow_user_id")
+                .eq("user_id", userId)
+                .list()
+                .stream()
+                .map(follow -> follow.getFollowUserId().toString())
+                .toArray(String[]::new);
+        if (followUserIds.length > 0) {
+            stringRedisTemplate.opsForSet().add(followsKey, followUserIds);
+        }
+        stringRedisTemplate.opsForValue().set(FOLLOWS_LOADED_KEY + userId, "1", FOLLOWS_LOADED_TTL, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        resume();
+    }
+
+    /**
+     * 继续推送未完成的任务
+     */
+    @Scheduled(fixedDelayString = "${hmdp.feed.resume-interval-ms:60000}", initialDelayString = "${hmdp.feed.resume-interval-ms:60000}")
+    public void resume() {
+        Set<String> pending = stringRedisTemplate.opsForSet().members(FEED_FANOUT_PENDING_KEY);
+        if (pending != null) {
+            pending.forEach(this::submit);
+        }
+    }
+
+    private void submit(String blogId) {
+        if (!inFlight.add(blogId)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    fanOut(blogId);
+                } finally {
+                    inFlight.remove(blogId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //队列已满，任务保留在redis中，由定时任务继续
+            inFlight.remove(blogId);
+            log.warn("推送队列已满，稍后继续推送笔记: {}", blogId);
+        }
+    }
+
+    /**
+     * 按主键游标分批推送，每批记录进度，锁失效时停止
+     */
+    void fanOut(String blogId) {
+        String lockKey = LOCK_FANOUT_KEY + blogId;
+        String token = UUID.randomUUID().toString();
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, token, lockTtlSeconds, TimeUnit.SECONDS);
+        if (!Boolean.TRUE.equals(locked)) {
+            //其他节点正在推送
+            return;
+        }
+        String taskKey = FEED_FANOUT_KEY + blogId;
+        try {
+            Map<Object, Object> task = stringRedisTemplate.opsForHash().entries(taskKey);
+            if (task.isEmpty()) {
+                stringRedisTemplate.opsForSet().remove(FEED_FANOUT_PENDING_KEY, blogId);
+                return;
+            }
+            Long authorId = Long.valueOf(task.get("authorId").toString());
+            double time = Double.parseDouble(task.get("time").toString());
+            long lastFollowId = Long.parseLong(task.get("lastFollowId").toString());
+            long count = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                //每批推送前续期，只有锁仍由自己持有时才续期，锁已过期被其他节点获取时停止推送
+                Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(lockKey),
+                        token, String.valueOf(lockTtlSeconds));
+                if (renewed == null || renewed == 0) {
+                    log.warn("推送任务锁已失效，停止推送笔记: {}", blogId);
+                    return;
+                }
+                //1.按主键游标读取一批粉丝
+                List<Follow> follows = followService.query()
+                        .select("id", "user_id")
+                        .eq("follow_user_id", authorId)
+                        .gt("id", lastFollowId)
+                        .orderByAsc("id")
+                        .last("limit " + chunkSize)
+                        .list();
+                if (follows.isEmpty()) {
+                    break;
+                }
+                //2.一次pipeline写入这批粉丝的收件箱，裁剪到最大长度，并记录进度
+                long nextFollowId = follows.get(follows.size() - 1).getId();
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection conn = (StringRedisConnection) connection;
+                    for (Follow follow : follows) {
+                        String key = FEED_KEY + follow.getUserId();
+                        conn.zAdd(key, time, blogId);
+                        conn.zRemRange(key, 0, -inboxMaxSize - 1);
+                    }
+                    conn.hSet(taskKey, "lastFollowId", String.valueOf(nextFollowId));
+                    return null;
+                });
+                lastFollowId = nextFollowId;
+                count += follows.size();
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            //3.推送完成，删除任务
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                conn.del(taskKey);
+                conn.sRem(FEED_FANOUT_PENDING_KEY, blogId);
+                return null;
+            });
+            log.debug("笔记{}推送完成，粉丝数{}", blogId, count);
+        } catch (Exception e) {
+            log.error("推送笔记失败，稍后继续, blogId:{}", blogId, e);
+        } finally {
+            stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(lockKey), token);
+        }
+    }
+
+    /**
+     * 归并时每个来源的读取位置
+     */
+    private static final class Cursor {
+        private ZSetOperations.TypedTuple<String> head;
+        private final Iterator<ZSetOperations.TypedTuple<String>> it;
+
+        private Cursor(ZSetOperations.TypedTuple<String> head, Iterator<ZSetOperations.TypedTuple<String>> it) {
+            this.head = head;
+            this.it = it;
+        }
+
+        private boolean advance() {
+            if (!it.hasNext()) {
+                return false;
+            }
+            head = it.next();
+            return true;
+        }
+    }
+}
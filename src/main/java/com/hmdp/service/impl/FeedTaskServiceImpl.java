@@ -0,0 +1,17 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.entity.FeedTask;
+import com.hmdp.mapper.FeedTaskMapper;
+import com.hmdp.service.IFeedTaskService;
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import org.springframework.stereotype.Service;
+
+/**
+ * <p>
+ *  服务实现类
+ * </p>
+ */
+@Service
+public class FeedTaskServiceImpl extends ServiceImpl<FeedTaskMapper, FeedTask> implements IFeedTaskService {
+
+}
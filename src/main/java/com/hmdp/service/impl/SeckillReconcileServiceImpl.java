@@ -0,0 +1,362 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillReconcileResult;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillReconcileService;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ *  秒杀对账：流式比对redis下单集合、库存与数据库订单，任何一侧都不整体加载到内存
+ * </p>
+ */
+@Slf4j
+@Service
+public class SeckillReconcileServiceImpl implements ISeckillReconcileService {
+    private static final String QUEUE_NAME = "stream.orders";
+    private static final String GROUP_NAME = "g1";
+    //每批比对的订单数
+    private static final int PAGE_SIZE = 1000;
+    private static final int VOUCHER_PAGE_SIZE = 100;
+    private static final int SAMPLE_SIZE = 20;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisIdWorker redisIdWorker;
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    /**
+     * 定时对账，只报告不修复，默认关闭
+     */
+    @Scheduled(cron = "${hmdp.seckill.reconcile-cron:-}")
+    public void scheduledReconcile() {
+        reconcile(false);
+    }
+
+    @Override
+    public Result reconcile(boolean repair) {
+        if (!running.compareAndSet(false, true)) {
+            return Result.fail("对账任务正在执行");
+        }
+        try {
+            //修复前要求订单队列已经消费完，否则正在排队的订单会被误判为缺失
+            if (repair && !isQueueDrained()) {
+                return Result.fail("订单队列尚未消费完，不能修复");
+            }
+            List<SeckillReconcileResult> drifts = new ArrayList<>();
+            long scanned = 0;
+            long lastVoucherId = 0;
+            while (true) {
+                //按主键分页遍历秒杀券
+                List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                        .gt("voucher_id", lastVoucherId)
+                        .orderByAsc("voucher_id")
+                        .last("limit " + VOUCHER_PAGE_SIZE)
+                        .list();
+                if (vouchers.isEmpty()) {
+                    break;
+                }
+                for (SeckillVoucher voucher : vouchers) {
+                    SeckillReconcileResult result;
+                    try {
+                        result = reconcileVoucher(voucher, repair);
+                    } catch (Exception e) {
+                        //单张券失败不影响其他券，记录原因后继续
+                        log.error("秒杀对账失败, voucherId:{}", voucher.getVoucherId(), e);
+                        result = new SeckillReconcileResult();
+                        result.setVoucherId(voucher.getVoucherId());
+                        result.setRepaired(false);
+                        result.setError(e.getMessage());
+                    }
+                    scanned++;
+                    if (hasDrift(result)) {
+                        drifts.add(result);
+                    }
+                }
+                lastVoucherId = vouchers.get(vouchers.size() - 1).getVoucherId();
+            }
+            log.info("秒杀对账完成，共{}张券，{}张存在差异，repair:{}", scanned, drifts.size(), repair);
+            return Result.ok(drifts, scanned);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private SeckillReconcileResult reconcileVoucher(SeckillVoucher voucher, boolean repair) {
+        Long voucherId = voucher.getVoucherId();
+        SeckillReconcileResult result = new SeckillReconcileResult();
+        result.setVoucherId(voucherId);
+        result.setDbStock(voucher.getStock().longValue());
+        result.setRepaired(false);
+        //对账过程中可能有新订单进入队列，每张券修复前重新检查
+        if (repair && !isQueueDrained()) {
+            repair = false;
+            result.setError("订单队列尚未消费完，跳过修复");
+        }
+        //1.读取redis库存，分片模式下累加所有分片
+        int shardCount = voucher.getStockShards() == null ? 1 : Math.max(1, voucher.getStockShards());
+        List<String> stockKeys = new ArrayList<>(shardCount);
+        List<String> orderKeys = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            stockKeys.add(SeckillKeys.stockKey(voucherId, shardCount, i));
+            orderKeys.add(SeckillKeys.orderKey(voucherId, shardCount, i));
+        }
+        List<String> stocks = stringRedisTemplate.opsForValue().multiGet(stockKeys);
+        if (stocks == null || stocks.stream().allMatch(stock -> stock == null)) {
+            //redis中没有该券，交给预热处理
+            result.setRedisMissing(true);
+            return result;
+        }
+        result.setRedisMissing(false);
+        long redisStock = 0;
+        for (String stock : stocks) {
+            redisStock += stock == null ? 0 : Long.parseLong(stock);
+        }
+        List<Long> sample = new ArrayList<>();
+
+        //2.redis -> 数据库：下单数用SCARD统计，SSCAN分批取出下单用户，用IN查询检查订单是否存在
+        //SSCAN可能重复返回同一个成员，只在批内去重，跨批重复检查一次不影响结果，修复也是幂等的
+        long redisOrders = 0;
+        List<Object> sizes = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (String orderKey : orderKeys) {
+                conn.sCard(orderKey);
+            }
+            return null;
+        });
+        for (Object size : sizes) {
+            redisOrders += size == null ? 0 : (Long) size;
+        }
+        long missingInDb = 0;
+        for (String orderKey : orderKeys) {
+            Cursor<String> cursor = stringRedisTemplate.opsForSet()
+                    .scan(orderKey, ScanOptions.scanOptions().count(PAGE_SIZE).build());
+            try {
+                Set<Long> chunk = new LinkedHashSet<>(PAGE_SIZE);
+                while (cursor.hasNext()) {
+                    chunk.add(Long.valueOf(cursor.next()));
+                    if (chunk.size() == PAGE_SIZE) {
+                        missingInDb += checkDbOrders(voucherId, chunk, sample, repair);
+                        chunk.clear();
+                    }
+                }
+                if (!chunk.isEmpty()) {
+                    missingInDb += checkDbOrders(voucherId, chunk, sample, repair);
+                }
+            } finally {
+                closeQuietly(cursor);
+            }
+        }
+
+        //3.数据库 -> redis：按主键游标分页读取订单，用pipeline批量SISMEMBER
+        long dbOrders = 0;
+        long missingInRedis = 0;
+        long lastId = 0;
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderService.query()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + PAGE_SIZE)
+                    .list();
+            if (orders.isEmpty()) {
+                break;
+            }
+            dbOrders += orders.size();
+            lastId = orders.get(orders.size() - 1).getId();
+            missingInRedis += checkRedisOrders(voucherId, shardCount, orders, sample, repair);
+        }
+
+        //4.比对库存：两侧的库存+订单数都应等于初始库存
+        long dbStock = voucher.getStock();
+        if (repair && missingInDb > 0) {
+            //补建订单后数据库库存已变化，重新读取
+            dbStock = seckillVoucherService.getById(voucherId).getStock();
+        }
+        if (repair) {
+            redisOrders += missingInRedis;
+        }
+        long stockDiff = stockDiff(redisStock, redisOrders, dbStock, dbOrders);
+        if (repair && stockDiff != 0) {
+            adjustRedisStock(voucherId, stockKeys, stocks, -stockDiff);
+            redisStock -= stockDiff;
+        }
+        result.setRedisOrders(redisOrders);
+        result.setDbOrders(dbOrders);
+        result.setMissingInDb(missingInDb);
+        result.setMissingInRedis(missingInRedis);
+        result.setSampleUserIds(sample);
+        result.setRedisStock(redisStock);
+        result.setDbStock(dbStock);
+        result.setStockDiff(stockDiff);
+        result.setRepaired(repair && (missingInDb > 0 || missingInRedis > 0 || stockDiff != 0));
+        return result;
+    }
+
+    /**
+     * 检查一批redis下单用户在数据库中是否有订单，修复时补建缺失的订单
+     * @return 缺失的订单数
+     */
+    private long checkDbOrders(Long voucherId, Collection<Long> userIds, List<Long> sample, boolean repair) {
+        Set<Long> found = voucherOrderService.query()
+                .select("user_id")
+                .eq("voucher_id", voucherId)
+                .in("user_id", userIds)
+                .list()
+                .stream()
+                .map(VoucherOrder::getUserId)
+                .collect(Collectors.toSet());
+        List<VoucherOrder> repairOrders = new ArrayList<>();
+        for (Long userId : userIds) {
+            if (found.contains(userId)) {
+                continue;
+            }
+            if (sample.size() < SAMPLE_SIZE) {
+                sample.add(userId);
+            }
+            if (repair) {
+                repairOrders.add(new VoucherOrder()
+                        .setId(redisIdWorker.nextId("order"))
+                        .setUserId(userId)
+                        .setVoucherId(voucherId));
+            }
+        }
+        if (!repairOrders.isEmpty()) {
+            voucherOrderService.createVoucherOrders(repairOrders);
+            log.warn("补建缺失订单, voucherId:{}, 数量:{}", voucherId, repairOrders.size());
+        }
+        return userIds.size() - found.size();
+    }
+
+    /**
+     * 检查一批数据库订单的用户是否在redis下单集合中，修复时补写集合
+     * @return 缺失的用户数
+     */
+    private long checkRedisOrders(Long voucherId, int shardCount, List<VoucherOrder> orders,
+                                  List<Long> sample, boolean repair) {
+        List<Object> flags = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder order : orders) {
+                conn.sIsMember(orderKey(voucherId, shardCount, order.getUserId()), order.getUserId().toString());
+            }
+            return null;
+        });
+        List<Long> missing = new ArrayList<>();
+        for (int i = 0; i < orders.size(); i++) {
+            if (!Boolean.TRUE.equals(flags.get(i))) {
+                missing.add(orders.get(i).getUserId());
+            }
+        }
+        for (Long userId : missing) {
+            if (sample.size() < SAMPLE_SIZE) {
+                sample.add(userId);
+            }
+        }
+        if (repair && !missing.isEmpty()) {
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (Long userId : missing) {
+                    conn.sAdd(orderKey(voucherId, shardCount, userId), userId.toString());
+                }
+                return null;
+            });
+            log.warn("补写redis下单记录, voucherId:{}, 数量:{}", voucherId, missing.size());
+        }
+        return missing.size();
+    }
+
+    /**
+     * 以数据库为准调整redis库存，扣减时从有库存的分片依次扣，增加时加到第一个分片
+     */
+    private void adjustRedisStock(Long voucherId, List<String> stockKeys, List<String> stocks, long delta) {
+        if (delta > 0) {
+            stringRedisTemplate.opsForValue().increment(stockKeys.get(0), delta);
+            soldOutRegistry.reset(voucherId);
+        } else {
+            long remaining = -delta;
+            for (int i = 0; i < stockKeys.size() && remaining > 0; i++) {
+                long stock = stocks.get(i) == null ? 0 : Long.parseLong(stocks.get(i));
+                long decrement = i == stockKeys.size() - 1 ? remaining : Math.min(stock, remaining);
+                if (decrement > 0) {
+                    stringRedisTemplate.opsForValue().decrement(stockKeys.get(i), decrement);
+                    remaining -= decrement;
+                }
+            }
+        }
+        log.warn("调整redis库存, voucherId:{}, delta:{}", voucherId, delta);
+    }
+
+    /**
+     * 订单队列是否已经全部投递并确认
+     */
+    boolean isQueueDrained() {
+        StreamInfo.XInfoStream info = stringRedisTemplate.opsForStream().info(QUEUE_NAME);
+        StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(QUEUE_NAME);
+        return groups.stream()
+                .filter(group -> GROUP_NAME.equals(group.groupName()))
+                .anyMatch(group -> group.pendingCount() == 0
+                        && info.lastGeneratedId().equals(group.lastDeliveredId()));
+    }
+
+    private static String orderKey(Long voucherId, int shardCount, Long userId) {
+        return SeckillKeys.orderKey(voucherId, shardCount, SeckillKeys.homeShard(userId, shardCount));
+    }
+
+    /**
+     * 库存差异：两侧的库存+订单数都应等于初始库存，正数表示redis多出的库存
+     */
+    static long stockDiff(long redisStock, long redisOrders, long dbStock, long dbOrders) {
+        return (redisStock + redisOrders) - (dbStock + dbOrders);
+    }
+
+    private static boolean hasDrift(SeckillReconcileResult result) {
+        if (result.getError() != null) {
+            return true;
+        }
+        return result.getRedisMissing()
+                || result.getMissingInDb() > 0
+                || result.getMissingInRedis() > 0
+                || result.getStockDiff() != 0;
+    }
+
+    private static void closeQuietly(Cursor<?> cursor) {
+        try {
+            cursor.close();
+        } catch (Exception e) {
+            log.warn("关闭SSCAN游标失败", e);
+        }
+    }
+}
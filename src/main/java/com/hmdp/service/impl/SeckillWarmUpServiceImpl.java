@@ -0,0 +1,186 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.ISeckillWarmUpService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillWindowCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.hmdp.utils.RedisScripts.DEAD_LETTER_SCRIPT;
+import static com.hmdp.utils.RedisScripts.RENEW_SCRIPT;
+import static com.hmdp.utils.RedisScripts.SECKILL_BORROW_SCRIPT;
+import static com.hmdp.utils.RedisScripts.SECKILL_SCRIPT;
+import static com.hmdp.utils.RedisScripts.UNLOCK_SCRIPT;
+
+/**
+ * <p>
+ *  启动时把未结束的秒杀券库存和已下单用户重建到redis，并预加载lua脚本
+ *  redis中已有库存的券视为正常，不会被覆盖
+ * </p>
+ */
+@Slf4j
+@Service
+public class SeckillWarmUpServiceImpl implements ISeckillWarmUpService, ApplicationRunner {
+    private static final int VOUCHER_PAGE_SIZE = 100;
+    //每批写入redis的下单用户数
+    private static final int ORDER_PAGE_SIZE = 5000;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillWindowCache windowCache;
+    @Value("${hmdp.seckill.warm-up-on-startup:true}")
+    private boolean warmUpOnStartup;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!warmUpOnStartup) {
+            return;
+        }
+        try {
+            warmUp();
+        } catch (Exception e) {
+            log.error("秒杀预热失败", e);
+        }
+    }
+
+    @Override
+    public Result warmUp() {
+        if (!running.compareAndSet(false, true)) {
+            return Result.fail("预热任务正在执行");
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            //1.预加载脚本，秒杀请求直接命中EVALSHA
+            loadScripts();
+            //2.按主键分页遍历未结束的秒杀券
+            long vouchers = 0;
+            long buyers = 0;
+            long lastVoucherId = 0;
+            LocalDateTime now = LocalDateTime.now();
+            while (true) {
+                List<SeckillVoucher> page = seckillVoucherService.query()
+                        .gt("voucher_id", lastVoucherId)
+                        .gt("end_time", now)
+                        .orderByAsc("voucher_id")
+                        .last("limit " + VOUCHER_PAGE_SIZE)
+                        .list();
+                if (page.isEmpty()) {
+                    break;
+                }
+                for (SeckillVoucher voucher : page) {
+                    Long voucherId = voucher.getVoucherId();
+                    int shards = stockShards(voucher);
+                    if (isLoaded(voucherId, shards)) {
+                        continue;
+                    }
+                    //先写下单用户再写库存，避免库存可见时已下单用户还能重复购买
+                    buyers += loadBuyers(voucherId, shards);
+                    voucherService.initSeckillStock(voucherId, voucher.getStock(), shards);
+                    vouchers++;
+                }
+                lastVoucherId = page.get(page.size() - 1).getVoucherId();
+            }
+            //3.同步秒杀时间窗口
+            windowCache.refresh();
+            long cost = System.currentTimeMillis() - begin;
+            log.info("秒杀预热完成，重建{}张券，{}个下单用户，耗时{}ms", vouchers, buyers, cost);
+            Map<String, Object> result = new HashMap<>();
+            result.put("vouchers", vouchers);
+            result.put("buyers", buyers);
+            result.put("cost", cost);
+            return Result.ok(result);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private void loadScripts() {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            for (RedisScript<Long> script : Arrays.asList(SECKILL_SCRIPT, SECKILL_BORROW_SCRIPT, DEAD_LETTER_SCRIPT, UNLOCK_SCRIPT, RENEW_SCRIPT)) {
+                String sha = connection.scriptLoad(script.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+                log.debug("加载lua脚本, sha1:{}", sha);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 判断redis中是否已有该券的库存
+     */
+    private boolean isLoaded(Long voucherId, int shards) {
+        Boolean exists = stringRedisTemplate.hasKey(SeckillKeys.stockKey(voucherId, shards, 0));
+        return Boolean.TRUE.equals(exists);
+    }
+
+    /**
+     * 按主键游标分页读取订单，用pipeline批量写入下单集合
+     * @return 写入的用户数
+     */
+    private long loadBuyers(Long voucherId, int shards) {
+        long count = 0;
+        long lastId = 0;
+        while (true) {
+            List<VoucherOrder> orders = voucherOrderService.query()
+                    .select("id", "user_id")
+                    .eq("voucher_id", voucherId)
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + ORDER_PAGE_SIZE)
+                    .list();
+            if (orders.isEmpty()) {
+                break;
+            }
+            //按下单集合分组，每个集合一条SADD
+            Map<String, List<String>> membersByKey = new HashMap<>();
+            for (VoucherOrder order : orders) {
+                membersByKey.computeIfAbsent(SeckillKeys.orderKey(voucherId, shards, SeckillKeys.homeShard(order.getUserId(), shards)),
+                                k -> new ArrayList<>())
+                        .add(order.getUserId().toString());
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                membersByKey.forEach((key, members) -> conn.sAdd(key, members.toArray(new String[0])));
+                return null;
+            });
+            count += orders.size();
+            lastId = orders.get(orders.size() - 1).getId();
+        }
+        return count;
+    }
+
+    private static int stockShards(SeckillVoucher voucher) {
+        return voucher.getStockShards() == null ? 1 : Math.max(1, voucher.getStockShards());
+    }
+}
@@ -7,20 +7,30 @@ import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.ICacheOutboxService;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BloomFilter;
+import com.hmdp.utils.CacheBloomFilter;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisData;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -29,12 +39,27 @@ import static com.hmdp.utils.RedisConstants.*;
  *  服务实现类
  * </p>
  */
+@Slf4j
 @Service
-public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
+public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService, ApplicationRunner {
+    //重建布隆过滤器时每批读取的id数
+    private static final int BLOOM_PAGE_SIZE = 5000;
+    //增量补齐时向前多读的id数，覆盖id较小但提交较晚的店铺
+    private static final long BLOOM_CATCH_UP_OVERLAP = 1000;
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private CacheClient cacheClient;
+    @Resource
+    private CacheBloomFilter bloomFilter;
+    @Resource
+    private ICacheOutboxService cacheOutboxService;
+    //店铺缓存是否使用逻辑过期，与预热写入的格式一致
+    @Value("${hmdp.cache.shop.logical-expire:false}")
+    private boolean logicalExpire;
+    //布隆过滤器中已包含的最大店铺id
+    private volatile long bloomLastId;
 
     /**
      * 根据id获取店铺信息
@@ -44,16 +69,20 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      */
     @Override
     public Result queryById(Long id)   {
-        //缓存穿透
-        Shop shop=cacheClient
-                .queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,id2->getById(id2),CACHE_SHOP_TTL,TimeUnit.MINUTES);
+        Shop shop;
+        if(logicalExpire){
+            //逻辑过期解决缓存击穿，未预热或被删除的店铺在未命中时查询数据库重建
+            shop=cacheClient
+                    .queryWithLogicalExpire(CACHE_SHOP_KEY,LOCK_SHOP_KEY,id,Shop.class,id2->getById(id2),CACHE_SHOP_TTL,TimeUnit.MINUTES);
+        }else {
+            //缓存穿透
+            shop=cacheClient
+                    .queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,id2->getById(id2),CACHE_SHOP_TTL,TimeUnit.MINUTES);
+        }
 
         //互斥锁解决缓存击穿
         //Shop shop=queryWithMutex(id);
 
-        //逻辑过期解决缓存击穿
-        //Shop shop=queryWithLogicalExpire(id);
-
         if(shop==null){
             return Result.fail("店铺不存在");
         }
@@ -69,9 +98,86 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //1.更新数据库
         updateById(shop);
-        //2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY+id);
+        //2.在同一个事务中记录要删除的缓存，提交后异步删除redis和各节点的本地缓存
+        cacheOutboxService.record(CACHE_SHOP_KEY+id);
         return Result.ok();
     }
 
+    @Override
+    public Result saveShop(Shop shop) {
+        //1.写入数据库
+        save(shop);
+        //2.加入布隆过滤器
+        bloomFilter.add(CACHE_SHOP_KEY, shop.getId());
+        //3.返回店铺id
+        return Result.ok(shop.getId());
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        try {
+            rebuildBloomFilter();
+        } catch (Exception e) {
+            log.error("店铺布隆过滤器重建失败", e);
+        }
+    }
+
+    /**
+     * 按主键游标分页读取全部店铺id，重建布隆过滤器，删除店铺后需要重建才能剔除
+     * @return 写入的id个数
+     */
+    @Override
+    @Scheduled(cron = "${hmdp.cache.bloom.rebuild-cron:-}")
+    public long rebuildBloomFilter() {
+        if (!bloomFilter.isEnabled()) {
+            return 0;
+        }
+        BloomFilter filter = bloomFilter.startRebuild(CACHE_SHOP_KEY, count());
+        long count = 0;
+        long lastId = 0;
+        while (true) {
+            List<Shop> shops = query()
+                    .select("id")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + BLOOM_PAGE_SIZE)
+                    .list();
+            if (shops.isEmpty()) {
+                break;
+            }
+            shops.forEach(shop -> filter.put(shop.getId().toString()));
+            count += shops.size();
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+        bloomFilter.finishRebuild(CACHE_SHOP_KEY, filter, count);
+        bloomLastId = Math.max(bloomLastId, lastId);
+        return count;
+    }
+
+    /**
+     * 定时把新增的店铺id补进本节点的布隆过滤器
+     * 新增店铺只通过发布订阅通知其他节点，消息丢失时该店铺会被一直判定为不存在，这里兜底
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.bloom.catch-up-ms:30000}", initialDelayString = "${hmdp.cache.bloom.catch-up-ms:30000}")
+    public void catchUpBloomFilter() {
+        if (!bloomFilter.isEnabled()) {
+            return;
+        }
+        long lastId = Math.max(0, bloomLastId - BLOOM_CATCH_UP_OVERLAP);
+        while (true) {
+            List<Shop> shops = query()
+                    .select("id")
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + BLOOM_PAGE_SIZE)
+                    .list();
+            if (shops.isEmpty()) {
+                break;
+            }
+            bloomFilter.putAllLocal(CACHE_SHOP_KEY, shops.stream().map(Shop::getId).collect(Collectors.toList()));
+            lastId = shops.get(shops.size() - 1).getId();
+            bloomLastId = Math.max(bloomLastId, lastId);
+        }
+    }
+
 }
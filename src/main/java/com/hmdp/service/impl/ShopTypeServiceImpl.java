@@ -1,44 +1,158 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.collection.CollectionUtil;
+import cn.hutool.crypto.digest.DigestUtil;
 import cn.hutool.json.JSONUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheMetrics;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.util.Collections;
 import java.util.List;
 
 import static com.hmdp.utils.RedisConstants.SHOP_LIST_KEY;
+import static com.hmdp.utils.RedisConstants.SHOP_TYPE_VERSION_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SHOP_TYPE_VERSION_KEY;
 
 /**
  * <p>
  *  服务实现类
+ *  店铺类型很少变化，列表和序列化好的响应保存在内存快照中，按redis中的版本号刷新
+ *  版本变化时通过发布订阅立即通知，同时定时轮询版本号兜底
  * </p>
  */
+@Slf4j
 @Service
-public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
+public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService, MessageListener {
     @Autowired
     private StringRedisTemplate redisTemplate;
+    @Resource
+    private CacheMetrics cacheMetrics;
+    @Resource
+    private ObjectMapper objectMapper;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    private volatile ShopTypeSnapshot snapshot;
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SHOP_TYPE_VERSION_CHANNEL));
+    }
 
     @Override
     public Result queryTypeList() {
+        ShopTypeSnapshot s = getSnapshot();
+        if (s == null) {
+            return Result.fail("列表信息不存在");
+        }
+        return Result.ok(s.getTypes());
+    }
+
+    @Override
+    public ShopTypeSnapshot getSnapshot() {
+        ShopTypeSnapshot s = snapshot;
+        if (s != null) {
+            cacheMetrics.recordLocalHit(SHOP_LIST_KEY);
+            return s;
+        }
+        return reload();
+    }
+
+    @Override
+    public Result refreshTypeList() {
+        //删除redis中的列表，增加版本号并通知所有节点
+        redisTemplate.delete(SHOP_LIST_KEY);
+        Long version = redisTemplate.opsForValue().increment(SHOP_TYPE_VERSION_KEY);
+        redisTemplate.convertAndSend(SHOP_TYPE_VERSION_CHANNEL, String.valueOf(version));
+        return Result.ok(version);
+    }
+
+    /**
+     * 定时检查版本号
+     */
+    @Scheduled(fixedDelayString = "${hmdp.shop-type.version-poll-ms:30000}")
+    public void checkVersion() {
+        ShopTypeSnapshot s = snapshot;
+        if (s != null && s.getVersion() != currentVersion()) {
+            reload();
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        try {
+            reload();
+        } catch (Exception e) {
+            log.error("刷新店铺类型快照失败", e);
+        }
+    }
+
+    /**
+     * 重新加载快照，先读版本号再读数据，加载期间版本变化时下次检查会再次加载
+     * @return 列表为空时返回null且不保存快照
+     */
+    private synchronized ShopTypeSnapshot reload() {
+        long version = currentVersion();
+        ShopTypeSnapshot s = snapshot;
+        if (s != null && s.getVersion() == version) {
+            return s;
+        }
+        List<ShopType> typeList = loadTypeList();
+        if (CollectionUtil.isEmpty(typeList)) {
+            return null;
+        }
+        List<ShopType> types = Collections.unmodifiableList(typeList);
+        byte[] body;
+        try {
+            body = objectMapper.writeValueAsBytes(Result.ok(types));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("序列化店铺类型失败", e);
+        }
+        String etag = "\"" + version + "-" + DigestUtil.md5Hex(body) + "\"";
+        s = new ShopTypeSnapshot(version, types, body, etag);
+        snapshot = s;
+        log.info("店铺类型快照已刷新, version:{}, size:{}", version, types.size());
+        return s;
+    }
+
+    private long currentVersion() {
+        String version = redisTemplate.opsForValue().get(SHOP_TYPE_VERSION_KEY);
+        return version == null ? 0 : Long.parseLong(version);
+    }
+
+    private List<ShopType> loadTypeList() {
         List<String> shopTypeList=redisTemplate.opsForList().range(SHOP_LIST_KEY,0,-1);
         if(CollectionUtil.isNotEmpty(shopTypeList)){
-            List<ShopType> types= JSONUtil.toList(shopTypeList.get(0),ShopType.class);
-            return Result.ok(types);
+            cacheMetrics.recordHit(SHOP_LIST_KEY);
+            return JSONUtil.toList(shopTypeList.get(0),ShopType.class);
         }
+        cacheMetrics.recordMiss(SHOP_LIST_KEY);
+        long begin=System.nanoTime();
         List<ShopType> typeList=query().orderByAsc("sort").list();
+        cacheMetrics.recordLoad(SHOP_LIST_KEY,System.nanoTime()-begin,true);
         if(CollectionUtil.isEmpty(typeList)){
-            return Result.fail("列表信息不存在");
+            return typeList;
         }
         String jsonStr=JSONUtil.toJsonStr(typeList);
         redisTemplate.opsForList().leftPushAll(SHOP_LIST_KEY,jsonStr);
-        return Result.ok(typeList);
+        return typeList;
     }
 }
@@ -0,0 +1,214 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopWarmUpProgress;
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopWarmUpService;
+import com.hmdp.utils.CacheClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
+
+/**
+ * <p>
+ *  店铺缓存预热：按主键把tb_shop切分成多个区间，由有界线程池并行按游标分页读取，每页用一次pipeline写入redis
+ *  所有线程共享一个限速器，限制每秒读取的行数，避免压垮数据库；写入格式与店铺查询使用的缓存方式一致
+ * </p>
+ */
+@Slf4j
+@Service
+public class ShopWarmUpServiceImpl implements IShopWarmUpService, ApplicationRunner {
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private CacheClient cacheClient;
+    @Value("${hmdp.cache.shop.logical-expire:false}")
+    private boolean logicalExpire;
+    @Value("${hmdp.cache.warm-up.on-startup:true}")
+    private boolean warmUpOnStartup;
+    @Value("${hmdp.cache.warm-up.threads:4}")
+    private int threads;
+    @Value("${hmdp.cache.warm-up.page-size:1000}")
+    private int pageSize;
+    //每秒最多读取的行数，0表示不限速
+    @Value("${hmdp.cache.warm-up.rows-per-second:50000}")
+    private long rowsPerSecond;
+
+    //预热线程池，空闲时线程自动回收，多次预热共用
+    private ThreadPoolExecutor executor;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicInteger failedSegments = new AtomicInteger();
+    private volatile long startTime;
+    private volatile long endTime;
+    //限速器下一次可以读取的时间(纳秒)
+    private long nextFreeNanos;
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger index = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "shop-warm-up-" + index.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (warmUpOnStartup) {
+            warmUp();
+        }
+    }
+
+    @Override
+    public Result warmUp() {
+        if (!running.compareAndSet(false, true)) {
+            return Result.fail("预热任务正在执行");
+        }
+        total.set(0);
+        loaded.set(0);
+        failedSegments.set(0);
+        startTime = System.currentTimeMillis();
+        endTime = 0;
+        try {
+            doWarmUp();
+        } catch (Exception e) {
+            log.error("店铺缓存预热失败", e);
+            finish();
+        }
+        return Result.ok(progress());
+    }
+
+    @Override
+    public Result queryProgress() {
+        return Result.ok(progress());
+    }
+
+    /**
+     * 切分区间并提交到预热线程池，不等待完成，全部区间结束后记录结果
+     */
+    private void doWarmUp() {
+        //1.查询主键范围和总数
+        Shop first = shopService.query().select("id").orderByAsc("id").last("limit 1").one();
+        if (first == null) {
+            finish();
+            return;
+        }
+        Shop last = shopService.query().select("id").orderByDesc("id").last("limit 1").one();
+        total.set(shopService.count());
+        //2.切分成比线程数更多的区间，避免数据分布不均时个别线程拖慢整体
+        long minId = first.getId();
+        long maxId = last.getId();
+        int segments = threads * 4;
+        long step = Math.max(1, (maxId - minId) / segments + 1);
+        List<CompletableFuture<Void>> futures = new ArrayList<>(segments);
+        for (long from = minId - 1; from < maxId; from += step) {
+            long begin = from;
+            long end = Math.min(from + step, maxId);
+            futures.add(CompletableFuture.runAsync(() -> warmUpSegment(begin, end), executor));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).whenComplete((v, e) -> {
+            log.info("店铺缓存预热完成，写入{}个店铺，失败{}个区间，耗时{}ms",
+                    loaded.get(), failedSegments.get(), System.currentTimeMillis() - startTime);
+            finish();
+        });
+    }
+
+    private void finish() {
+        endTime = System.currentTimeMillis();
+        running.set(false);
+    }
+
+    /**
+     * 按主键游标分页预热(begin, end]区间内的店铺
+     */
+    private void warmUpSegment(long begin, long end) {
+        long lastId = begin;
+        try {
+            while (lastId < end) {
+                acquire(pageSize);
+                List<Shop> shops = shopService.query()
+                        .gt("id", lastId)
+                        .le("id", end)
+                        .orderByAsc("id")
+                        .last("limit " + pageSize)
+                        .list();
+                if (shops.isEmpty()) {
+                    break;
+                }
+                Map<String, Object> values = new HashMap<>(shops.size() * 2);
+                for (Shop shop : shops) {
+                    values.put(CACHE_SHOP_KEY + shop.getId(), shop);
+                }
+                cacheClient.setAll(values, CACHE_SHOP_TTL, TimeUnit.MINUTES, logicalExpire);
+                loaded.addAndGet(shops.size());
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+        } catch (Exception e) {
+            failedSegments.incrementAndGet();
+            log.error("店铺缓存预热区间({}, {}]失败, lastId:{}", begin, end, lastId, e);
+        }
+    }
+
+    /**
+     * 限速，按行数预约读取时间，需要等待时休眠
+     */
+    private void acquire(int rows) throws InterruptedException {
+        if (rowsPerSecond <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = Math.max(now, nextFreeNanos);
+            nextFreeNanos = start + rows * 1_000_000_000L / rowsPerSecond;
+            waitNanos = start - now;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private ShopWarmUpProgress progress() {
+        ShopWarmUpProgress progress = new ShopWarmUpProgress();
+        progress.setRunning(running.get());
+        progress.setTotal(total.get());
+        progress.setLoaded(loaded.get());
+        progress.setFailedSegments(failedSegments.get());
+        progress.setStartTime(startTime);
+        long cost = (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+        progress.setCostMillis(startTime == 0 ? 0 : cost);
+        progress.setShopsPerSecond(cost <= 0 ? 0 : loaded.get() * 1000.0 / cost);
+        return progress;
+    }
+}
@@ -1,6 +1,9 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.dto.OrderConsumerStats;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
@@ -8,25 +11,49 @@ import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillWindowCache;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.lang.management.ManagementFactory;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_TTL;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+import static com.hmdp.utils.RedisScripts.DEAD_LETTER_SCRIPT;
+import static com.hmdp.utils.RedisScripts.SECKILL_BORROW_SCRIPT;
+import static com.hmdp.utils.RedisScripts.SECKILL_SCRIPT;
 
 /**
  * <p>
@@ -42,22 +69,59 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedisIdWorker redisIdWorker;
     @Resource
-    private RedissonClient redissonClient;
+    private SeckillSoldOutRegistry soldOutRegistry;
+    @Resource
+    private SeckillWindowCache windowCache;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
-    //定义代理对象，必须由主线程获取
+    //代理对象，消费者线程通过它调用事务方法
+    @Resource
+    @Lazy
     private IVoucherOrderService proxy;
-    //配置lua脚本信息
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
-    static{
-        SECKILL_SCRIPT=new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("Seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    //lua脚本返回值对应的失败原因
+    private static final String[] SECKILL_FAIL_MESSAGES={"","库存不足","不能重复下单","秒杀尚未开始","秒杀已经结束"};
 //    //阻塞队列
 //    private BlockingQueue<VoucherOrder> orderTasks=new ArrayBlockingQueue<>(1024*1024);
-    //创建线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR= Executors.newSingleThreadExecutor();
+    private static final String QUEUE_NAME="stream.orders";
+    private static final String GROUP_NAME="g1";
+    private static final String DEAD_LETTER_QUEUE_NAME="stream.orders.dlq";
+    //订单状态，排队中(queued)由lua脚本写入
+    private static final String STATUS_PERSISTED="persisted";
+    private static final String STATUS_FAILED="failed";
+    //同一用户已有订单（例如对账补建过），本条订单被跳过
+    private static final String STATUS_DUPLICATE="duplicate";
+    private static final String STATUS_UNKNOWN="unknown";
+    //订单状态的本地缓存时间，终态可以缓存更久
+    private static final long STATUS_CACHE_MILLIS=500;
+    private static final long FINAL_STATUS_CACHE_MILLIS=60000;
+    private static final int STATUS_CACHE_MAX_SIZE=100000;
+    //消费者数量与每批读取的消息数
+    @Value("${hmdp.seckill.consumer-count:4}")
+    private int consumerCount;
+    @Value("${hmdp.seckill.batch-size:200}")
+    private int batchSize;
+    //pending消息的回收间隔、可被接管的最小空闲时间、最大投递次数
+    @Value("${hmdp.seckill.recovery-interval-ms:5000}")
+    private long recoveryIntervalMs;
+    @Value("${hmdp.seckill.claim-min-idle-ms:60000}")
+    private long claimMinIdleMs;
+    @Value("${hmdp.seckill.max-deliveries:5}")
+    private long maxDeliveries;
+    //用户所在分片库存不足时，每次从相邻分片借用的库存数
+    @Value("${hmdp.seckill.shard-borrow-size:10}")
+    private long shardBorrowSize;
+    //消费者空闲超过该时间且没有pending消息时从组内删除，节点重启后旧名称的消费者不再残留
+    @Value("${hmdp.seckill.dead-consumer-idle-ms:600000}")
+    private long deadConsumerIdleMs;
+    //创建线程池，每个消费者独占一个线程
+    private ExecutorService seckillOrderExecutor;
+    private ScheduledExecutorService pendingRecoveryExecutor;
+    //本节点记录的消息失败原因，转入死信队列时一并写入
+    private final Map<String,String> failureReasons=new ConcurrentHashMap<>();
+    //订单id -> 状态，每条记录按状态设置不同的过期时间
+    private final LRUCache<Long,String> orderStatusCache=CacheUtil.newLRUCache(STATUS_CACHE_MAX_SIZE);
+    private final List<VoucherOrderHandler> orderHandlers=new CopyOnWriteArrayList<>();
+    private volatile boolean running=true;
 
 //    @Override
 //    public Result seckillVoucher(Long voucherId) {
@@ -102,92 +166,355 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @PostConstruct
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        seckillOrderExecutor=Executors.newFixedThreadPool(consumerCount);
+        //消费者名称必须在组内唯一，用进程名区分不同节点
+        String nodeName= ManagementFactory.getRuntimeMXBean().getName();
+        for(int i=0;i<consumerCount;i++){
+            VoucherOrderHandler handler=new VoucherOrderHandler("c-"+nodeName+"-"+i);
+            orderHandlers.add(handler);
+            seckillOrderExecutor.submit(handler);
+        }
+        //回收消费者不主动读取新消息，只处理接管过来的pending消息
+        VoucherOrderHandler recoveryHandler=new VoucherOrderHandler("c-"+nodeName+"-recovery");
+        orderHandlers.add(recoveryHandler);
+        pendingRecoveryExecutor=Executors.newSingleThreadScheduledExecutor();
+        pendingRecoveryExecutor.scheduleWithFixedDelay(new PendingRecoveryTask(recoveryHandler),
+                recoveryIntervalMs,recoveryIntervalMs,TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy(){
+        running=false;
+        seckillOrderExecutor.shutdownNow();
+        pendingRecoveryExecutor.shutdownNow();
     }
 
     /**
-     * 异步生成订单
+     * 查询各订单消费者的吞吐量与延迟
+     * @return
+     */
+    @Override
+    public Result queryConsumerStats(){
+        //查询组内各消费者的pending数量
+        Map<String,Long> pendingMap=new HashMap<>();
+        StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(QUEUE_NAME, GROUP_NAME);
+        consumers.stream().forEach(c->pendingMap.put(c.consumerName(),c.pendingCount()));
+        List<OrderConsumerStats> statsList=new ArrayList<>(orderHandlers.size());
+        for(VoucherOrderHandler handler:orderHandlers){
+            OrderConsumerStats stats = handler.stats();
+            stats.setPending(pendingMap.getOrDefault(handler.consumerName,0L));
+            statsList.add(stats);
+        }
+        return Result.ok(statsList);
+    }
+
+    /**
+     * 异步生成订单，每个消费者批量读取并批量确认
      */
     private class VoucherOrderHandler implements Runnable{
-        String queueName="stream.orders";
+        private final String consumerName;
+        private final LongAdder processed=new LongAdder();
+        private final LongAdder failed=new LongAdder();
+        private final LongAdder batches=new LongAdder();
+        private final long startTime=System.currentTimeMillis();
+        private volatile long lagMillis;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
         @Override
         public void run() {
-            while(true){
+            while(running){
                 try {
-                    //1.获取消息队列中的订单信息
+                    //1.批量获取消息队列中的订单信息
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                            Consumer.from(GROUP_NAME, consumerName),
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                            StreamOffset.create(QUEUE_NAME, ReadOffset.lastConsumed())
                     );
                     //判断消息是否获取成功
                     if(list==null||list.isEmpty()){
                         //获取失败，说明没有消息，进入下一次循环
                         continue;
                     }
-                    //解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder= BeanUtil.fillBeanWithMap(values,new VoucherOrder(),true);
-                    //如果获取成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    //ack确认
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
+                    //2.处理整批订单并确认
+                    handleBatch(list);
                 } catch (Exception e) {
+                    if(!running){
+                        break;
+                    }
+                    //未确认的消息留在pending中，由回收任务处理
                     log.error("处理订单异常",e);
-                    handlePendingList();
                 }
             }
         }
 
-        private void handlePendingList() {
-            while(true){
+        /**
+         * 整批下单，成功的消息用一次XACK确认，失败的留在pending中等待重试
+         * @param list
+         */
+        private void handleBatch(List<MapRecord<String, Object, Object>> list){
+            //解析消息中的订单信息
+            List<VoucherOrder> orders=new ArrayList<>(list.size());
+            List<RecordId> recordIds=new ArrayList<>(list.size());
+            for(MapRecord<String, Object, Object> record:list){
                 try {
-                    //1.获取消息队列中的订单信息
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-                    //判断消息是否获取成功
-                    if(list==null||list.isEmpty()){
-                        //获取失败，说明PendingList没有异常消息，结束循环
+                    orders.add(BeanUtil.fillBeanWithMap(record.getValue(),new VoucherOrder(),true));
+                    recordIds.add(record.getId());
+                } catch (Exception e) {
+                    failed.increment();
+                    recordFailure(record.getId(),e);
+                    log.error("解析订单异常, recordId:{}",record.getId(),e);
+                }
+            }
+            List<RecordId> success=new ArrayList<>(recordIds.size());
+            List<Long> persistedIds=new ArrayList<>(orders.size());
+            List<Long> duplicateIds=new ArrayList<>();
+            Map<Integer,Exception> failures=new HashMap<>();
+            List<String> statuses=persistOrders(orders,failures);
+            for(int i=0;i<orders.size();i++){
+                String status=statuses.get(i);
+                if(status==null){
+                    failed.increment();
+                    recordFailure(recordIds.get(i),failures.get(i));
+                    log.error("处理订单异常, recordId:{}",recordIds.get(i),failures.get(i));
+                    continue;
+                }
+                success.add(recordIds.get(i));
+                (STATUS_PERSISTED.equals(status)?persistedIds:duplicateIds).add(orders.get(i).getId());
+            }
+            if(!success.isEmpty()){
+                //ack确认
+                stringRedisTemplate.opsForStream().acknowledge(QUEUE_NAME,GROUP_NAME,success.toArray(new RecordId[0]));
+                if(!failureReasons.isEmpty()){
+                    success.forEach(id->failureReasons.remove(id.getValue()));
+                }
+                //批量更新订单状态
+                updateOrderStatus(persistedIds,STATUS_PERSISTED);
+                updateOrderStatus(duplicateIds,STATUS_DUPLICATE);
+            }
+            processed.add(success.size());
+            batches.increment();
+            //消息id的时间戳部分即入队时间
+            Long enqueueTime = list.get(list.size() - 1).getId().getTimestamp();
+            if(enqueueTime!=null){
+                lagMillis=System.currentTimeMillis()-enqueueTime;
+            }
+        }
+
+        private OrderConsumerStats stats(){
+            OrderConsumerStats stats=new OrderConsumerStats();
+            stats.setConsumerName(consumerName);
+            long count=processed.sum();
+            stats.setProcessed(count);
+            stats.setFailed(failed.sum());
+            stats.setBatches(batches.sum());
+            long elapsed=Math.max(1,System.currentTimeMillis()-startTime);
+            stats.setOrdersPerSecond(count*1000.0/elapsed);
+            stats.setLagMillis(lagMillis);
+            return stats;
+        }
+    }
+
+    /**
+     * 一次事务批量保存订单，整批失败时逐条保存，找出出错的订单
+     * @param orders
+     * @param failures 逐条保存时失败的订单下标和异常
+     * @return 与orders一一对应的结果，STATUS_PERSISTED或STATUS_DUPLICATE，保存失败的为null
+     */
+    List<String> persistOrders(List<VoucherOrder> orders,Map<Integer,Exception> failures){
+        List<String> statuses=new ArrayList<>(orders.size());
+        try {
+            Set<Long> duplicates=new HashSet<>(proxy.createVoucherOrders(orders));
+            for(VoucherOrder order:orders){
+                statuses.add(duplicates.contains(order.getId())?STATUS_DUPLICATE:STATUS_PERSISTED);
+            }
+            return statuses;
+        } catch (Exception e) {
+            log.warn("批量下单失败，逐条重试, size:{}",orders.size(),e);
+        }
+        for(int i=0;i<orders.size();i++){
+            try {
+                statuses.add(proxy.createVoucherOrder(orders.get(i))?STATUS_PERSISTED:STATUS_DUPLICATE);
+            } catch (Exception e) {
+                statuses.add(null);
+                failures.put(i,e);
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * 用pipeline批量写入订单状态
+     * @param orderIds
+     * @param status
+     */
+    private void updateOrderStatus(List<Long> orderIds,String status){
+        if(orderIds.isEmpty()){
+            return;
+        }
+        long ttl=TimeUnit.MINUTES.toSeconds(ORDER_STATUS_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn=(StringRedisConnection) connection;
+            for(Long orderId:orderIds){
+                conn.setEx(ORDER_STATUS_KEY+orderId,ttl,status);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 查询订单状态，先查本地短时缓存，再查redis，不访问数据库
+     * @param orderId
+     * @return
+     */
+    @Override
+    public Result queryOrderStatus(Long orderId){
+        //读取时不刷新访问时间，过期时间从写入时算起
+        String cached=orderStatusCache.get(orderId,false);
+        if(cached!=null){
+            return Result.ok(cached);
+        }
+        String status=stringRedisTemplate.opsForValue().get(ORDER_STATUS_KEY+orderId);
+        if(status==null){
+            status=STATUS_UNKNOWN;
+        }
+        boolean isFinal=STATUS_PERSISTED.equals(status)||STATUS_FAILED.equals(status)||STATUS_DUPLICATE.equals(status);
+        orderStatusCache.put(orderId,status,isFinal?FINAL_STATUS_CACHE_MILLIS:STATUS_CACHE_MILLIS);
+        return Result.ok(status);
+    }
+
+    private void recordFailure(RecordId recordId,Exception e){
+        //防止大量失败时无限增长
+        if(failureReasons.size()<10000){
+            failureReasons.put(recordId.getValue(),e.toString());
+        }
+    }
+
+    /**
+     * 回收超时未确认的消息，与消费者并行运行
+     * XPENDING批量找出空闲过久的消息，XCLAIM转给回收消费者重新下单，投递次数超过上限的转入死信队列
+     */
+    private class PendingRecoveryTask implements Runnable{
+        //每轮最多扫描的页数
+        private static final int MAX_PAGES=10;
+        private final VoucherOrderHandler handler;
+
+        PendingRecoveryTask(VoucherOrderHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void run() {
+            try {
+                String start="-";
+                for(int page=0;page<MAX_PAGES&&running;page++){
+                    //1.分页查询pending消息
+                    PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                            .pending(QUEUE_NAME, GROUP_NAME, Range.rightUnbounded(Range.Bound.inclusive(start)), batchSize);
+                    if(pendingMessages.isEmpty()){
                         break;
                     }
-                    //解析消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder= BeanUtil.fillBeanWithMap(values,new VoucherOrder(),true);
-                    //如果获取成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    //ack确认
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
-                } catch (Exception e) {
-                    log.error("处理pendingList异常",e);
-                    try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
+                    //2.区分需要接管的消息和需要转入死信队列的消息
+                    List<RecordId> claimIds=new ArrayList<>();
+                    List<PendingMessage> deadMessages=new ArrayList<>();
+                    RecordId lastId=null;
+                    for(PendingMessage message:pendingMessages){
+                        lastId=message.getId();
+                        if(message.getElapsedTimeSinceLastDelivery().toMillis()<claimMinIdleMs){
+                            //消费者还在处理
+                            continue;
+                        }
+                        if(message.getTotalDeliveryCount()>=maxDeliveries){
+                            deadMessages.add(message);
+                        }else {
+                            claimIds.add(message.getId());
+                        }
+                    }
+                    moveToDeadLetter(deadMessages);
+                    claimAndHandle(claimIds);
+                    if(pendingMessages.size()<batchSize){
+                        break;
                     }
+                    start=RecordId.of(lastId.getTimestamp(),lastId.getSequence()+1).getValue();
                 }
+                removeDeadConsumers();
+            } catch (Exception e) {
+                log.error("回收pending消息异常",e);
             }
         }
-        private void handleVoucherOrder(VoucherOrder voucherOrder) {
-            //获取用户
-            Long userId = voucherOrder.getUserId();
-            RLock lock = redissonClient.getLock("lock:order:" + userId);
-            //获取锁
-            boolean isLock = lock.tryLock();
-            //判断获取锁是否成功
-            if(!isLock){
-                //获取锁失败
-                log.error("不允许重复下单");
+
+        /**
+         * 删除已经退出的消费者
+         * 消费者名称包含进程名，每次重启都会留下旧消费者，它们的pending消息先被接管或转入死信队列，清空后再XGROUP DELCONSUMER
+         */
+        private void removeDeadConsumers(){
+            StreamInfo.XInfoConsumers consumers = stringRedisTemplate.opsForStream().consumers(QUEUE_NAME, GROUP_NAME);
+            consumers.stream().forEach(consumer->{
+                String name=consumer.consumerName();
+                boolean isLocal=orderHandlers.stream().anyMatch(h->h.consumerName.equals(name));
+                //存活的消费者每次阻塞读取都会刷新空闲时间
+                if(isLocal||consumer.pendingCount()>0||consumer.idleTimeMs()<deadConsumerIdleMs){
+                    return;
+                }
+                stringRedisTemplate.opsForStream().deleteConsumer(QUEUE_NAME, Consumer.from(GROUP_NAME,name));
+                log.info("删除已退出的订单消费者: {}",name);
+            });
+        }
+
+        private void claimAndHandle(List<RecordId> claimIds){
+            if(claimIds.isEmpty()){
+                return;
             }
-            try{
-                 proxy.createVoucherOrder(voucherOrder);
-            }finally {
-                //释放锁
-                lock.unlock();
+            //XCLAIM会增加投递次数，并再次校验空闲时间，避免和其他节点重复接管
+            RedisStreamCommands.XClaimOptions options = RedisStreamCommands.XClaimOptions
+                    .minIdle(Duration.ofMillis(claimMinIdleMs))
+                    .ids(claimIds.toArray(new RecordId[0]));
+            List<StringRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<StringRecord>>) connection ->
+                    ((StringRedisConnection) connection).xClaim(QUEUE_NAME, GROUP_NAME, handler.consumerName, options));
+            if(claimed==null||claimed.isEmpty()){
+                return;
+            }
+            List<MapRecord<String, Object, Object>> records=new ArrayList<>(claimed.size());
+            for(StringRecord record:claimed){
+                records.add(MapRecord.create(QUEUE_NAME,new HashMap<Object,Object>(record.getValue())).withId(record.getId()));
+            }
+            handler.handleBatch(records);
+        }
+
+        private void moveToDeadLetter(List<PendingMessage> deadMessages){
+            for(PendingMessage message:deadMessages){
+                String recordId=message.getIdAsString();
+                Map<String,String> content=new HashMap<>();
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                        .range(QUEUE_NAME, Range.closed(recordId, recordId));
+                if(records!=null&&!records.isEmpty()){
+                    records.get(0).getValue().forEach((k,v)->content.put(k.toString(),v.toString()));
+                }
+                String reason=failureReasons.get(recordId);
+                content.put("recordId",recordId);
+                content.put("consumer",message.getConsumerName());
+                content.put("deliveryCount",String.valueOf(message.getTotalDeliveryCount()));
+                content.put("reason",reason!=null?reason:"超过最大投递次数");
+                //写死信队列和确认在同一个脚本中完成，仍在pending中的消息才转移，避免丢失或重复
+                List<String> args=new ArrayList<>(content.size()*2+2);
+                args.add(GROUP_NAME);
+                args.add(recordId);
+                content.forEach((k,v)->{
+                    args.add(k);
+                    args.add(v);
+                });
+                Long moved = stringRedisTemplate.execute(DEAD_LETTER_SCRIPT,
+                        Arrays.asList(QUEUE_NAME,DEAD_LETTER_QUEUE_NAME),args.toArray());
+                if(moved==null||moved==0){
+                    continue;
+                }
+                failureReasons.remove(recordId);
+                if(content.containsKey("id")){
+                    updateOrderStatus(Collections.singletonList(Long.valueOf(content.get("id"))),STATUS_FAILED);
+                }
+                log.error("订单消息转入死信队列, recordId:{}, reason:{}",recordId,content.get("reason"));
             }
         }
     }
@@ -229,50 +556,132 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     @Override
     public Result seckillVoucher(Long voucherId){
+        //本地已标记售罄，直接返回
+        if(soldOutRegistry.isSoldOut(voucherId)){
+            return Result.fail("库存不足");
+        }
+        //根据本地时间窗口判断秒杀是否开始或结束
+        long now=System.currentTimeMillis();
+        SeckillWindowCache.Window window = windowCache.get(voucherId);
+        if(window==null){
+            return Result.fail("库存不足");
+        }
+        if(now<window.getBeginMillis()){
+            return Result.fail("秒杀尚未开始");
+        }
+        if(now>window.getEndMillis()){
+            return Result.fail("秒杀已经结束");
+        }
         Long userId = UserHolder.getUser().getId();
+        //补货前发出的请求拿到的是旧版本，返回售罄时不会挡住补货后的请求
+        long epoch = soldOutRegistry.currentEpoch(voucherId);
         long orderId = redisIdWorker.nextId("order");
-        //执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(),String.valueOf(orderId)
-        );
+        //在用户所在的分片执行lua脚本，一人一单只需检查该分片的下单集合
+        //脚本同时写入全局的订单队列和订单状态，分片只支持单节点redis，见SeckillKeys
+        int shards=window.getStockShards();
+        int home=SeckillKeys.homeShard(userId,shards);
+        String stockKey=SeckillKeys.stockKey(voucherId,shards,home);
+        String orderKey=SeckillKeys.orderKey(voucherId,shards,home);
+        int r=executeSeckill(stockKey,orderKey,voucherId,userId,orderId,now);
+        //所在分片库存不足时，依次从相邻分片借库存后重新下单，所有分片都借不到才算售罄
+        boolean soldOut=true;
+        for(int i=1;i<shards&&r==1;i++){
+            String fromKey=SeckillKeys.stockKey(voucherId,shards,(home+i)%shards);
+            if(borrowStock(fromKey,stockKey)>0){
+                soldOut=false;
+                r=executeSeckill(stockKey,orderKey,voucherId,userId,orderId,now);
+            }
+        }
         //判断结果是否为0
-        int r=result.intValue();
         if(r!=0){
             //不为0，代表没有资格购买
-            return Result.fail(r==1?"库存不足":"不能重复下单");
+            if(r==1&&soldOut){
+                //记录售罄，后续请求不再访问redis
+                soldOutRegistry.markSoldOut(voucherId,epoch);
+            }
+            return Result.fail(SECKILL_FAIL_MESSAGES[r]);
         }
-        //获取代理对象
-        proxy=(IVoucherOrderService) AopContext.currentProxy();
         //返回订单id
         return Result.ok(orderId);
     }
 
+    /**
+     * 在一个分片上执行秒杀脚本，脚本用到的key都通过KEYS传入
+     * @return 0成功，1库存不足，2重复下单，3未开始，4已结束
+     */
+    private int executeSeckill(String stockKey,String orderKey,Long voucherId,Long userId,long orderId,long now){
+        Long result = stringRedisTemplate.execute(
+                SECKILL_SCRIPT,
+                Arrays.asList(stockKey,orderKey,SECKILL_WINDOW_KEY+voucherId,QUEUE_NAME,ORDER_STATUS_KEY+orderId),
+                voucherId.toString(), userId.toString(),String.valueOf(orderId),String.valueOf(now),
+                String.valueOf(TimeUnit.MINUTES.toSeconds(ORDER_STATUS_TTL))
+        );
+        return result.intValue();
+    }
+
+    /**
+     * 从相邻分片借一批库存到用户所在分片，扣减和增加在同一个脚本中原子完成
+     * @return 借到的库存数
+     */
+    private long borrowStock(String fromKey,String toKey){
+        Long borrowed = stringRedisTemplate.execute(SECKILL_BORROW_SCRIPT,
+                Arrays.asList(fromKey,toKey),String.valueOf(shardBorrowSize));
+        return borrowed==null?0:borrowed;
+    }
+
     /**
      * 保存订单，扣减库存
      * @param voucherOrder
+     * @return 是否插入，用户已有订单时返回false
+     */
+    @Override
+    @Transactional
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {
+        return createVoucherOrders(Collections.singletonList(voucherOrder)).isEmpty();
+    }
+
+    /**
+     * 批量保存订单，每张优惠券只扣减一次库存
+     * 一人一单由(user_id,voucher_id)唯一索引保证，重复订单被INSERT IGNORE跳过，不扣库存
+     * @param voucherOrders
+     * @return 因重复被跳过的订单id
      */
+    @Override
     @Transactional
-    public  void createVoucherOrder(VoucherOrder voucherOrder) {
-        //一人一单
-        Long userId=UserHolder.getUser().getId();
-        //查询订单
-        long count=query().eq("user_id",userId).eq("voucher_id",voucherOrder.getVoucherId()).count();
-        //判断是否存在
-        if(count>0){
-            //用户已经购买过了
-            log.error("用户已经买过一次");
+    public List<Long> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        List<Long> duplicateIds=new ArrayList<>();
+        if(voucherOrders.isEmpty()){
+            return duplicateIds;
         }
-        //扣减库存
-        boolean success=seckillVoucherService.update()
-                .setSql("stock=stock-1")
-                .eq("voucher_id",voucherOrder)
-                .gt("stock",0)  //where id=? and stock >0
-                .update();
-        if(!success){
-            log.error("库存不足");
+        //按优惠券分组
+        Map<Long,List<VoucherOrder>> ordersByVoucher=voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        for(Map.Entry<Long,List<VoucherOrder>> entry:ordersByVoucher.entrySet()){
+            Long voucherId=entry.getKey();
+            //多行插入，返回实际插入的行数
+            int count=getBaseMapper().insertBatchIgnore(entry.getValue());
+            if(count<entry.getValue().size()){
+                log.warn("存在重复订单, voucherId:{}, 重复数:{}",voucherId,entry.getValue().size()-count);
+                //找出被跳过的订单，这些订单id不会落库
+                List<Long> ids=entry.getValue().stream().map(VoucherOrder::getId).collect(Collectors.toList());
+                Set<Long> inserted=query().select("id").in("id",ids).list().stream()
+                        .map(VoucherOrder::getId).collect(Collectors.toSet());
+                ids.stream().filter(id->!inserted.contains(id)).forEach(duplicateIds::add);
+            }
+            if(count==0){
+                continue;
+            }
+            //扣减库存
+            boolean success=seckillVoucherService.update()
+                    .setSql("stock=stock-"+count)
+                    .eq("voucher_id",voucherId)
+                    .ge("stock",count)  //where id=? and stock >=k
+                    .update();
+            if(!success){
+                //库存不足，回滚整批
+                throw new IllegalStateException("库存不足, voucherId:"+voucherId+", 需要扣减:"+count);
+            }
         }
-        save(voucherOrder);
+        return duplicateIds;
     }
-}
\ No newline at end of file
+}
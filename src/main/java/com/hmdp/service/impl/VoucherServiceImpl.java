@@ -7,14 +7,18 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillWindowCache;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.util.HashMap;
 import java.util.List;
-
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import java.util.Map;
 
 /**
  * <p>
@@ -31,6 +35,16 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillSoldOutRegistry soldOutRegistry;
+    @Resource
+    private SeckillWindowCache windowCache;
+    //新建秒杀券未指定分片数时的默认库存分片数，1表示不分片
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int defaultStockShards;
+    //秒杀脚本的key不在同一个slot，集群模式下不能开启分片
+    @Value("${spring.redis.cluster.nodes:}")
+    private String clusterNodes;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -43,16 +57,47 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
+        // 热点券可以单独指定库存分片数
+        int stockShards = voucher.getStockShards() != null && voucher.getStockShards() > 0
+                ? voucher.getStockShards() : Math.max(1, defaultStockShards);
+        if (stockShards > 1 && !clusterNodes.isEmpty()) {
+            throw new IllegalArgumentException("redis集群模式下不支持库存分片");
+        }
         // 保存优惠券
         save(voucher);
         // 保存秒杀信息
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
         seckillVoucher.setStock(voucher.getStock());
+        seckillVoucher.setStockShards(stockShards);
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
+        //保存秒杀时间窗口
+        windowCache.put(voucher.getId(),voucher.getBeginTime(),voucher.getEndTime(),stockShards);
         //保存秒杀库存到redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+        initSeckillStock(voucher.getId(),voucher.getStock(),stockShards);
+    }
+
+    /**
+     * 把秒杀库存写入redis，并清除可能残留的售罄标记
+     * @param voucherId
+     * @param stock
+     * @param stockShards 库存分片数，1表示不分片
+     */
+    @Override
+    public void initSeckillStock(Long voucherId, int stock, int stockShards) {
+        if(stockShards<=1){
+            stringRedisTemplate.opsForValue().set(SeckillKeys.stockKey(voucherId,1,0),String.valueOf(stock));
+        }else {
+            //热点券开启分片，库存平均拆分到各个分片，余数分给前几个分片
+            Map<String,String> shardMap=new HashMap<>(stockShards*2);
+            for(int i=0;i<stockShards;i++){
+                int shardStock=stock/stockShards+(i<stock%stockShards?1:0);
+                shardMap.put(SeckillKeys.stockKey(voucherId,stockShards,i),String.valueOf(shardStock));
+            }
+            stringRedisTemplate.opsForValue().multiSet(shardMap);
+        }
+        soldOutRegistry.reset(voucherId);
     }
 }
@@ -0,0 +1,235 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.Voucher;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 紧凑的二进制编解码器，按字段顺序写入，只支持注册了格式的实体
+ * 每个实体的数据以格式版本号开头，新增字段时增加版本号并保留旧版本的读取逻辑
+ */
+@Component
+@Order(0)
+public class BinaryCacheCodec implements CacheCodec {
+
+    private final Map<Class<?>, Schema<?>> schemas = new HashMap<>();
+
+    public BinaryCacheCodec() {
+        schemas.put(Shop.class, new Schema<Shop>(1, BinaryCacheCodec::writeShop, BinaryCacheCodec::readShop));
+        schemas.put(Voucher.class, new Schema<Voucher>(1, BinaryCacheCodec::writeVoucher, BinaryCacheCodec::readVoucher));
+    }
+
+    @Override
+    public byte id() {
+        return 2;
+    }
+
+    @Override
+    public boolean supports(Class<?> type) {
+        return schemas.containsKey(type);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public byte[] encode(Object value) throws IOException {
+        Schema<Object> schema = (Schema<Object>) schemas.get(value.getClass());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(schema.version);
+        schema.writer.write(out, value);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] data, int offset, int length, Class<T> type) throws IOException {
+        Schema<?> schema = schemas.get(type);
+        if (schema == null) {
+            throw new IllegalArgumentException("不支持的类型: " + type.getName());
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        int version = in.readUnsignedByte();
+        return type.cast(schema.reader.read(in, version));
+    }
+
+    private static void writeShop(DataOutputStream out, Shop shop) throws IOException {
+        writeLong(out, shop.getId());
+        writeString(out, shop.getName());
+        writeLong(out, shop.getTypeId());
+        writeString(out, shop.getImages());
+        writeString(out, shop.getArea());
+        writeString(out, shop.getAddress());
+        writeDouble(out, shop.getX());
+        writeDouble(out, shop.getY());
+        writeLong(out, shop.getAvgPrice());
+        writeInt(out, shop.getSold());
+        writeInt(out, shop.getComments());
+        writeInt(out, shop.getScore());
+        writeString(out, shop.getOpenHours());
+        writeTime(out, shop.getCreateTime());
+        writeTime(out, shop.getUpdateTime());
+    }
+
+    private static Shop readShop(DataInputStream in, int version) throws IOException {
+        checkVersion(version, 1);
+        return new Shop()
+                .setId(readLong(in))
+                .setName(readString(in))
+                .setTypeId(readLong(in))
+                .setImages(readString(in))
+                .setArea(readString(in))
+                .setAddress(readString(in))
+                .setX(readDouble(in))
+                .setY(readDouble(in))
+                .setAvgPrice(readLong(in))
+                .setSold(readInt(in))
+                .setComments(readInt(in))
+                .setScore(readInt(in))
+                .setOpenHours(readString(in))
+                .setCreateTime(readTime(in))
+                .setUpdateTime(readTime(in));
+    }
+
+    private static void writeVoucher(DataOutputStream out, Voucher voucher) throws IOException {
+        writeLong(out, voucher.getId());
+        writeLong(out, voucher.getShopId());
+        writeString(out, voucher.getTitle());
+        writeString(out, voucher.getSubTitle());
+        writeString(out, voucher.getRules());
+        writeLong(out, voucher.getPayValue());
+        writeLong(out, voucher.getActualValue());
+        writeInt(out, voucher.getType());
+        writeInt(out, voucher.getStatus());
+        writeInt(out, voucher.getStock());
+        writeTime(out, voucher.getBeginTime());
+        writeTime(out, voucher.getEndTime());
+        writeTime(out, voucher.getCreateTime());
+        writeTime(out, voucher.getUpdateTime());
+    }
+
+    private static Voucher readVoucher(DataInputStream in, int version) throws IOException {
+        checkVersion(version, 1);
+        return new Voucher()
+                .setId(readLong(in))
+                .setShopId(readLong(in))
+                .setTitle(readString(in))
+                .setSubTitle(readString(in))
+                .setRules(readString(in))
+                .setPayValue(readLong(in))
+                .setActualValue(readLong(in))
+                .setType(readInt(in))
+                .setStatus(readInt(in))
+                .setStock(readInt(in))
+                .setBeginTime(readTime(in))
+                .setEndTime(readTime(in))
+                .setCreateTime(readTime(in))
+                .setUpdateTime(readTime(in));
+    }
+
+    private static void checkVersion(int version, int maxVersion) throws IOException {
+        if (version < 1 || version > maxVersion) {
+            throw new IOException("不支持的格式版本: " + version);
+        }
+    }
+
+    //每个字段前写一个字节标记是否为null
+
+    private static void writeLong(DataOutputStream out, Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value);
+        }
+    }
+
+    private static Long readLong(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    private static void writeInt(DataOutputStream out, Integer value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeInt(value);
+        }
+    }
+
+    private static Integer readInt(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readInt() : null;
+    }
+
+    private static void writeDouble(DataOutputStream out, Double value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeDouble(value);
+        }
+    }
+
+    private static Double readDouble(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readDouble() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeTime(DataOutputStream out, LocalDateTime value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value.toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(value.getNano());
+        }
+    }
+
+    private static LocalDateTime readTime(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        long seconds = in.readLong();
+        return LocalDateTime.ofEpochSecond(seconds, in.readInt(), ZoneOffset.UTC);
+    }
+
+    private interface Writer<T> {
+        void write(DataOutputStream out, T value) throws IOException;
+    }
+
+    private interface Reader<T> {
+        T read(DataInputStream in, int version) throws IOException;
+    }
+
+    private static final class Schema<T> {
+        private final int version;
+        private final Writer<T> writer;
+        private final Reader<T> reader;
+
+        private Schema(int version, Writer<T> writer, Reader<T> reader) {
+            this.version = version;
+            this.writer = writer;
+            this.reader = reader;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.hmdp.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 基于位数组的布隆过滤器，线程安全，只能添加不能删除
+ * 判断不存在时一定不存在，判断存在时有一定误判率
+ */
+public class BloomFilter {
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+
+    private final AtomicLongArray bits;
+    private final long bitSize;
+    private final int hashCount;
+
+    /**
+     * @param expectedInsertions 预计元素个数
+     * @param fpp 期望的误判率
+     * @param maxBits 位数组的上限，超过时按上限分配，实际误判率会升高
+     */
+    public BloomFilter(long expectedInsertions, double fpp, long maxBits) {
+        long n = Math.max(1, expectedInsertions);
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        m = Math.max(64, Math.min(m, maxBits));
+        this.bitSize = (m + 63) / 64 * 64;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitSize / n * Math.log(2)));
+        this.bits = new AtomicLongArray((int) (bitSize / 64));
+    }
+
+    public void put(String value) {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        long h1 = hash(data, 0);
+        long h2 = hash(data, SEED) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long index = Math.floorMod(h1 + i * h2, bitSize);
+            int word = (int) (index >>> 6);
+            long mask = 1L << (index & 63);
+            long old;
+            while (((old = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, old, old | mask)) {
+                //并发修改同一个字，重试
+            }
+        }
+    }
+
+    public boolean mightContain(String value) {
+        byte[] data = value.getBytes(StandardCharsets.UTF_8);
+        long h1 = hash(data, 0);
+        long h2 = hash(data, SEED) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long index = Math.floorMod(h1 + i * h2, bitSize);
+            if ((bits.get((int) (index >>> 6)) & (1L << (index & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 按当前元素个数估算的误判率
+     */
+    public double expectedFpp(long insertions) {
+        return Math.pow(1 - Math.exp(-hashCount * (double) insertions / bitSize), hashCount);
+    }
+
+    public long getBitSize() {
+        return bitSize;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    /**
+     * FNV-1a后再做一次murmur3的fmix64打散
+     */
+    private static long hash(byte[] data, long seed) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        for (byte b : data) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53e87cdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,150 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.CACHE_BLOOM_CHANNEL;
+
+/**
+ * 按缓存key前缀维护合法id的布隆过滤器，防止不存在的id穿透到redis和数据库
+ * 过滤器保存在本地内存，新增数据通过redis发布订阅同步到所有节点，删除数据需要重建
+ * 发布订阅消息可能丢失，由定时增量补齐兜底
+ * 某个前缀的过滤器还没有构建完成时，所有id都视为可能存在
+ */
+@Slf4j
+@Component
+public class CacheBloomFilter implements MessageListener {
+    private static final String SEPARATOR = " ";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Value("${hmdp.cache.bloom.enabled:true}")
+    private boolean enabled;
+    //期望的误判率
+    @Value("${hmdp.cache.bloom.fpp:0.01}")
+    private double fpp;
+    //每个过滤器最多占用的内存
+    @Value("${hmdp.cache.bloom.max-memory-mb:64}")
+    private long maxMemoryMb;
+    //预计元素个数的下限，实际按表中数据量的2倍预留
+    @Value("${hmdp.cache.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    //key前缀 -> 正在使用的过滤器
+    private final Map<String, BloomFilter> filters = new ConcurrentHashMap<>();
+    //key前缀 -> 正在重建的过滤器，重建期间新增的id同时写入
+    private final Map<String, BloomFilter> building = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_BLOOM_CHANNEL));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 判断id是否可能存在
+     * @param keyPrefix
+     * @param id
+     * @return false表示一定不存在
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        if (!enabled) {
+            return true;
+        }
+        BloomFilter filter = filters.get(keyPrefix);
+        return filter == null || filter.mightContain(id.toString());
+    }
+
+    /**
+     * 新增数据后调用，写入本地过滤器并通知其他节点
+     * @param keyPrefix
+     * @param id
+     */
+    public void add(String keyPrefix, Object id) {
+        if (!enabled) {
+            return;
+        }
+        addLocal(keyPrefix, id.toString());
+        stringRedisTemplate.convertAndSend(CACHE_BLOOM_CHANNEL, keyPrefix + SEPARATOR + id);
+    }
+
+    /**
+     * 只写入本地过滤器，用于定时增量补齐，不通知其他节点
+     * @param keyPrefix
+     * @param ids
+     */
+    public void putAllLocal(String keyPrefix, Iterable<?> ids) {
+        if (!enabled) {
+            return;
+        }
+        for (Object id : ids) {
+            addLocal(keyPrefix, id.toString());
+        }
+    }
+
+    /**
+     * 开始重建，返回的过滤器由调用方写入全部id后调用finishRebuild
+     * @param keyPrefix
+     * @param count 当前数据量
+     * @return
+     */
+    public BloomFilter startRebuild(String keyPrefix, long count) {
+        long maxBits = maxMemoryMb * 1024 * 1024 * 8;
+        BloomFilter filter = new BloomFilter(Math.max(expectedInsertions, count * 2), fpp, maxBits);
+        building.put(keyPrefix, filter);
+        return filter;
+    }
+
+    /**
+     * 重建完成，替换正在使用的过滤器
+     * @param keyPrefix
+     * @param filter
+     * @param count 写入的id个数
+     */
+    public void finishRebuild(String keyPrefix, BloomFilter filter, long count) {
+        //先替换再移除，保证切换期间新增的id不会丢失
+        filters.put(keyPrefix, filter);
+        building.remove(keyPrefix, filter);
+        log.info("布隆过滤器{}重建完成，{}个id，{}位，{}个哈希函数，当前误判率{}",
+                keyPrefix, count, filter.getBitSize(), filter.getHashCount(), filter.expectedFpp(count));
+    }
+
+    private void addLocal(String keyPrefix, String id) {
+        BloomFilter filter = filters.get(keyPrefix);
+        if (filter != null) {
+            filter.put(id);
+        }
+        BloomFilter next = building.get(keyPrefix);
+        if (next != null) {
+            next.put(id);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int index = body.lastIndexOf(SEPARATOR);
+        if (index <= 0) {
+            log.error("布隆过滤器消息格式错误: {}", body);
+            return;
+        }
+        addLocal(body.substring(0, index), body.substring(index + 1));
+    }
+}
@@ -1,40 +1,294 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
+import static com.hmdp.utils.RedisScripts.UNLOCK_SCRIPT;
 
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private CacheBloomFilter bloomFilter;
+    @Resource
+    private CacheCodecs cacheCodecs;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private CacheRebuildScheduler rebuildScheduler;
+    @Resource
+    private CacheMetrics cacheMetrics;
+    //启用本地缓存的key前缀，为空时不启用
+    @Value("${hmdp.cache.local.prefixes:}")
+    private String[] localPrefixes;
+    @Value("${hmdp.cache.local.max-size:10000}")
+    private int localMaxSize;
+    @Value("${hmdp.cache.local.ttl-seconds:30}")
+    private long localTtlSeconds;
+
+    //本地缓存(L1)，保存反序列化后的对象，按容量LRU淘汰并按时间过期
+    private LRUCache<String, Object> localCache;
+
+    //缓存未命中时等待其他请求加载的最长时间
+    @Value("${hmdp.cache.single-flight.wait-ms:3000}")
+    private long singleFlightWaitMillis;
+    //是否用redis互斥锁让各节点之间也只有一个请求查询数据库
+    @Value("${hmdp.cache.single-flight.distributed:false}")
+    private boolean singleFlightDistributed;
+    private static final long LOCK_RETRY_MILLIS = 20;
+    //过期时间的随机抖动比例，例如0.1表示在原过期时间上随机增加0~10%
+    @Value("${hmdp.cache.ttl-jitter:0.1}")
+    private double ttlJitter;
+    //是否在过期前按概率提前刷新(XFetch)
+    @Value("${hmdp.cache.early-refresh.enabled:false}")
+    private boolean earlyRefreshEnabled;
+    //越大越早刷新
+    @Value("${hmdp.cache.early-refresh.beta:1.0}")
+    private double earlyRefreshBeta;
+    //key前缀 -> 重建耗时(毫秒)的加权平均
+    private final Map<String, Long> rebuildCostMillis = new ConcurrentHashMap<>();
+    //正在加载的key -> 加载结果
+    private final Map<String, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+
     public CacheClient(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @PostConstruct
+    private void init() {
+        localCache = CacheUtil.newLRUCache(localMaxSize, TimeUnit.SECONDS.toMillis(localTtlSeconds));
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 删除缓存，同时通知所有节点删除本地缓存
+     * @param key
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        localCache.remove(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 用一次pipeline批量删除缓存，并通知所有节点删除本地缓存
+     * @param keys
+     */
+    public void deleteAll(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            conn.del(keys.toArray(new String[0]));
+            for (String key : keys) {
+                conn.publish(CACHE_INVALIDATE_CHANNEL, key);
+            }
+            return null;
+        });
+        keys.forEach(localCache::remove);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        localCache.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    private boolean isLocalCached(String keyPrefix) {
+        for (String prefix : localPrefixes) {
+            if (prefix.equals(keyPrefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        setBytes(key, cacheCodecs.encode(value, 0), withJitter(unit.toMillis(time)));
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
-        //设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        //设置逻辑过期，过期时间写在缓存值的头部
+        long expireAt = System.currentTimeMillis() + withJitter(unit.toMillis(time));
         //写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setBytes(key, cacheCodecs.encode(value, expireAt), 0);
+    }
+
+    private void putLocal(String key, Object value, boolean local, boolean hot) {
+        if (value == null) {
+            return;
+        }
+        if (local) {
+            localCache.put(key, value);
+        } else if (hot) {
+            localCache.put(key, value, hotKeyDetector.getPinMillis());
+        }
+    }
+
+    /**
+     * 用一次pipeline批量写入缓存，每个key的过期时间单独加抖动
+     * @param values key -> 数据
+     * @param time
+     * @param unit
+     * @param logicalExpire 为true时写入逻辑过期的数据，redis中不设置过期时间
+     */
+    public void setAll(Map<String, ?> values, Long time, TimeUnit unit, boolean logicalExpire) {
+        long ttl = unit.toMillis(time);
+        long now = System.currentTimeMillis();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            values.forEach((key, value) -> {
+                byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+                if (logicalExpire) {
+                    connection.set(rawKey, cacheCodecs.encode(value, now + withJitter(ttl)));
+                } else {
+                    connection.pSetEx(rawKey, withJitter(ttl), cacheCodecs.encode(value, 0));
+                }
+            });
+            return null;
+        });
+    }
+
+    /**
+     * 读取并解码缓存
+     * @param key
+     * @param type
+     * @param logicalExpire
+     * @return null表示未命中，data为null表示命中空值
+     */
+    private <R> CachedValue<R> read(String key, Class<R> type, boolean logicalExpire) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] raw = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+        if (raw == null) {
+            return null;
+        }
+        if (raw.length == 0) {
+            return new CachedValue<>(null, 0);
+        }
+        return cacheCodecs.decode(raw, type, logicalExpire);
+    }
+
+    /**
+     * 读取缓存和剩余过期时间，用一次pipeline完成，expireAt为物理过期的时间点
+     */
+    private <R> CachedValue<R> readWithTtl(String key, Class<R> type) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.get(rawKey);
+            connection.pTtl(rawKey);
+            return null;
+        }, RedisSerializer.byteArray());
+        byte[] raw = (byte[]) results.get(0);
+        if (raw == null) {
+            return null;
+        }
+        CachedValue<R> cached = raw.length == 0 ? new CachedValue<>(null, 0) : cacheCodecs.decode(raw, type, false);
+        Long ttl = (Long) results.get(1);
+        if (cached != null && ttl != null && ttl > 0) {
+            cached.setExpireAt(System.currentTimeMillis() + ttl);
+        }
+        return cached;
+    }
+
+    /**
+     * 在过期时间上增加随机的抖动，避免同时写入的key同时过期
+     */
+    private long withJitter(long ttlMillis) {
+        if (ttlJitter <= 0 || ttlMillis <= 0) {
+            return ttlMillis;
+        }
+        return ttlMillis + (long) (ttlMillis * ttlJitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * XFetch：过期前按概率提前刷新，越接近过期、重建越慢，提前刷新的概率越大
+     * @param keyPrefix
+     * @param expireAt
+     * @return
+     */
+    private boolean shouldRefreshEarly(String keyPrefix, long expireAt) {
+        if (!earlyRefreshEnabled || expireAt <= 0) {
+            return false;
+        }
+        Long delta = rebuildCostMillis.get(keyPrefix);
+        if (delta == null) {
+            //还没有测量过重建耗时
+            return false;
+        }
+        double gap = delta * earlyRefreshBeta * -Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        return System.currentTimeMillis() + gap >= expireAt;
+    }
+
+    /**
+     * 查询数据库并记录重建耗时，按前缀做指数加权平均
+     */
+    private <R,ID> R loadFromDb(String keyPrefix, ID id, Function<ID,R> dbFallback) {
+        long begin = System.nanoTime();
+        boolean success = false;
+        try {
+            R r = dbFallback.apply(id);
+            success = true;
+            return r;
+        } finally {
+            long nanos = System.nanoTime() - begin;
+            cacheMetrics.recordLoad(keyPrefix, nanos, success);
+            rebuildCostMillis.merge(keyPrefix, TimeUnit.NANOSECONDS.toMillis(nanos), (old, c) -> (old * 7 + c) / 8);
+        }
+    }
+
+    /**
+     * 写入编码后的缓存
+     * @param key
+     * @param value
+     * @param ttlMillis 小于等于0表示不过期
+     */
+    private void setBytes(String key, byte[] value, long ttlMillis) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            if (ttlMillis > 0) {
+                connection.pSetEx(rawKey, ttlMillis, value);
+            } else {
+                connection.set(rawKey, value);
+            }
+            return null;
+        });
     }
 
     /**
@@ -52,34 +306,166 @@ public class CacheClient {
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type,
                                          Function<ID,R> dbFallback,
                                          Long time, TimeUnit unit){
+        //布隆过滤器判断不存在，直接返回
+        if(!bloomFilter.mightContain(keyPrefix, id)){
+            return null;
+        }
         String key = keyPrefix + id;
+        //先查本地缓存，返回的对象在各请求间共享，调用方不能修改
+        //未开启本地缓存的前缀，热点key也会临时固定到本地缓存
+        boolean hot = hotKeyDetector.record(keyPrefix, key);
+        boolean local = isLocalCached(keyPrefix);
+        if(local||hot){
+            Object cached=localCache.get(key, false);
+            if(type.isInstance(cached)){
+                cacheMetrics.recordLocalHit(keyPrefix);
+                return type.cast(cached);
+            }
+        }
         //1.从redis中查询缓存
-        String json=stringRedisTemplate.opsForValue().get(key);
+        CachedValue<R> cached=earlyRefreshEnabled ? readWithTtl(key, type) : read(key, type, false);
         //2.判断是否存在
-        if(StrUtil.isNotBlank(json)){
-            //3.存在，直接返回
-            return JSONUtil.toBean(json, type);
-        }
-        //判断命中的是否是空值
-        if(json!=null){
-            return null;
-        }
-        //4.不存在，根据id查询数据库
-        R r=dbFallback.apply(id);
-        if(r==null){
-            //5.不存在，返回错误
-            //将空值写入redis
-            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
-            return null;
+        if(cached!=null){
+            //3.存在，直接返回，命中空值时data为null
+            R r=cached.getData();
+            if(r==null){
+                cacheMetrics.recordNullHit(keyPrefix);
+            }else {
+                cacheMetrics.recordHit(keyPrefix);
+            }
+            putLocal(key, r, local, hot);
+            //快过期的热点key提前在后台刷新
+            if(r!=null&&shouldRefreshEarly(keyPrefix, cached.getExpireAt())){
+                rebuildScheduler.submit(key, CACHE_LOCK_KEY + key, ()->{
+                    R r1=loadFromDb(keyPrefix, id, dbFallback);
+                    if(r1==null){
+                        delete(key);
+                        return;
+                    }
+                    this.set(key,r1,time,unit);
+                });
+            }
+            return r;
         }
-        //6.存在，写入redis
-        this.set(key,r,time,unit);
+        //4.不存在，根据id查询数据库，同一个key的并发请求只查询一次
+        cacheMetrics.recordMiss(keyPrefix);
+        R r=loadOnce(key, singleFlightDistributed ? CACHE_LOCK_KEY + key : null, type, false, ()->{
+            R loaded=loadFromDb(keyPrefix, id, dbFallback);
+            if(loaded==null){
+                //5.不存在，将空值写入redis
+                stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
+                return null;
+            }
+            //6.存在，写入redis
+            this.set(key,loaded,time,unit);
+            return loaded;
+        });
+        putLocal(key, r, local, hot);
         //返回
         return r;
     }
 
-    //建立线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR= Executors.newFixedThreadPool(10);
+    /**
+     * 批量查询，一次MGET查询redis，未命中的id一次查询数据库，再用pipeline写回redis
+     * @param keyPrefix
+     * @param ids
+     * @param type
+     * @param batchDbFallback 根据id集合查询数据库，返回id到数据的映射，不存在的id不放入
+     * @param time
+     * @param unit
+     * @return 与ids顺序一致的结果，不存在的数据为null
+     * @param <R>
+     * @param <ID>
+     */
+    public <R,ID> List<R> queryBatchWithPassThrough(String keyPrefix, List<ID> ids, Class<R> type,
+                                                   Function<List<ID>, Map<ID,R>> batchDbFallback,
+                                                   Long time, TimeUnit unit){
+        boolean local = isLocalCached(keyPrefix);
+        Map<ID,R> found = new HashMap<>(ids.size());
+        //1.去重，并用布隆过滤器和本地缓存过滤
+        List<ID> queryIds = new ArrayList<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            if (!bloomFilter.mightContain(keyPrefix, id)) {
+                continue;
+            }
+            if (local) {
+                Object cached = localCache.get(keyPrefix + id, false);
+                if (type.isInstance(cached)) {
+                    found.put(id, type.cast(cached));
+                    cacheMetrics.recordLocalHit(keyPrefix);
+                    continue;
+                }
+            }
+            queryIds.add(id);
+        }
+        if (!queryIds.isEmpty()) {
+            //2.一次MGET查询redis
+            List<String> keys = queryIds.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+            byte[][] rawKeys = keys.stream().map(key -> key.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+            List<ID> missIds = new ArrayList<>();
+            for (int i = 0; i < queryIds.size(); i++) {
+                byte[] raw = values == null ? null : values.get(i);
+                //空值说明数据不存在，不再查询数据库
+                if (raw != null && raw.length == 0) {
+                    cacheMetrics.recordNullHit(keyPrefix);
+                    continue;
+                }
+                CachedValue<R> cached = raw == null ? null : cacheCodecs.decode(raw, type, false);
+                if (cached == null || cached.getData() == null) {
+                    cacheMetrics.recordMiss(keyPrefix);
+                    missIds.add(queryIds.get(i));
+                    continue;
+                }
+                cacheMetrics.recordHit(keyPrefix);
+                found.put(queryIds.get(i), cached.getData());
+                if (local) {
+                    localCache.put(keys.get(i), cached.getData());
+                }
+            }
+            //3.未命中的id一次查询数据库，并写回redis
+            if (!missIds.isEmpty()) {
+                long begin = System.nanoTime();
+                Map<ID,R> loaded;
+                try {
+                    loaded = batchDbFallback.apply(missIds);
+                } catch (RuntimeException e) {
+                    cacheMetrics.recordLoad(keyPrefix, System.nanoTime() - begin, false);
+                    throw e;
+                }
+                cacheMetrics.recordLoad(keyPrefix, System.nanoTime() - begin, true);
+                long ttl = unit.toMillis(time);
+                long nullTtl = TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL);
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (ID id : missIds) {
+                        R r = loaded.get(id);
+                        byte[] rawKey = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+                        if (r == null) {
+                            connection.pSetEx(rawKey, nullTtl, new byte[0]);
+                        } else {
+                            connection.pSetEx(rawKey, withJitter(ttl), cacheCodecs.encode(r, 0));
+                        }
+                    }
+                    return null;
+                });
+                for (ID id : missIds) {
+                    R r = loaded.get(id);
+                    if (r != null) {
+                        found.put(id, r);
+                        if (local) {
+                            localCache.put(keyPrefix + id, r);
+                        }
+                    }
+                }
+            }
+        }
+        //4.按输入顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            result.add(found.get(id));
+        }
+        return result;
+    }
 
     /**
      * 基于逻辑过期时间解决缓存击穿
@@ -98,43 +484,52 @@ public class CacheClient {
                                            ID id,Class<R> type,
                                            Function<ID,R> dbFallback,
                                            Long time, TimeUnit unit){
+        //布隆过滤器判断不存在，直接返回
+        if(!bloomFilter.mightContain(keyPrefix, id)){
+            return null;
+        }
         String key = keyPrefix + id;
         //1.从redis中查询缓存
-        String json=stringRedisTemplate.opsForValue().get(key);
+        CachedValue<R> cached=read(key, type, true);
         //2.判断是否存在
-        if(StrUtil.isBlank(json)){
-            //3.不存在，直接返回
+        if(cached!=null&&cached.getData()==null){
+            //命中空值
+            cacheMetrics.recordNullHit(keyPrefix);
             return null;
         }
-        //命中，需要先把json反序列化为对象
-        RedisData redisData=JSONUtil.toBean(json,RedisData.class);
-        R r=JSONUtil.toBean((JSONObject)redisData.getData(),type);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        //判断是否过期
-        if(expireTime.isAfter(LocalDateTime.now())){
+        if(cached==null){
+            //3.不存在，说明是新增、被删除或未预热的数据，查询数据库重建，同一个key只查询一次
+            cacheMetrics.recordMiss(keyPrefix);
+            return loadOnce(key, lockKeyPrefix+id, type, true, ()->{
+                R loaded=loadFromDb(keyPrefix, id, dbFallback);
+                if(loaded==null){
+                    stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
+                    return null;
+                }
+                this.setWithLogicalExpire(key,loaded,time,unit);
+                return loaded;
+            });
+        }
+        cacheMetrics.recordHit(keyPrefix);
+        //命中，逻辑过期时间在缓存值的头部
+        R r=cached.getData();
+        //判断是否过期，未过期但需要提前刷新时也在后台重建
+        long now=System.currentTimeMillis();
+        if(cached.getExpireAt()>now&&!shouldRefreshEarly(keyPrefix, cached.getExpireAt())){
             //未过期，直接返回商铺信息
             return r;
         }
 
-        //过期，缓存重建
-        String lockKey=lockKeyPrefix+id; //获取互斥锁
-        boolean isLock=tryLock(lockKey);
-
-        if(isLock){
-            //成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(()->{
-                try {
-                    //查询数据库
-                    R r1 = dbFallback.apply(id);
-                    this.setWithLogicalExpire(key,r1,time,unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    //释放锁
-                    unLock(lockKey);
-                }
-            });
-        }
+        //过期，获取互斥锁成功则提交到重建线程池，队列满时直接返回旧数据
+        rebuildScheduler.submit(key, lockKeyPrefix+id, ()->{
+            //查询数据库
+            R r1 = loadFromDb(keyPrefix, id, dbFallback);
+            if(r1==null){
+                delete(key);
+                return;
+            }
+            this.setWithLogicalExpire(key,r1,time,unit);
+        });
         //返回过期的商铺信息
         return r;
     }
@@ -156,67 +551,122 @@ public class CacheClient {
                                     Class<R> type,
                                     Function<ID,R> dbFallback,
                                     Long time, TimeUnit unit)  {
+        if(!bloomFilter.mightContain(keyPrefix, id)){
+            return null;
+        }
         String key = keyPrefix + id;
         //1.从redis中查询缓存
-        String json=stringRedisTemplate.opsForValue().get(key);
+        CachedValue<R> cached=read(key, type, false);
         //2.判断是否存在
-        if(StrUtil.isNotBlank(json)){
-            //3.存在，直接返回
-            return JSONUtil.toBean(json, type);
+        if(cached!=null){
+            //3.存在，直接返回，命中空值时data为null
+            return cached.getData();
         }
-        //判断命中的是否是空值
-        if(json!=null){
-            return null;
+        //实现缓存重建，本节点内合并并发请求，节点之间用互斥锁协调
+        return loadOnce(key, lockKeyPrefix+id, type, false, ()->{
+            //根据id查询数据库
+            R r=loadFromDb(keyPrefix, id, dbFallback);
+            if(r!=null){
+                //存在，写入redis
+                this.set(key,r,time,unit);
+            }
+            return r;
+        });
+    }
+
+    /**
+     * 同一个key同时只有一个请求加载数据，其他请求等待并共享它的结果
+     * @param key 缓存key
+     * @param lockKey 跨节点互斥锁的key，为null时只在本节点内合并
+     * @param type
+     * @param logicalExpire 缓存值是否为逻辑过期格式
+     * @param loader 查询数据库并写入redis
+     * @return
+     * @param <R>
+     */
+    private <R> R loadOnce(String key, String lockKey, Class<R> type, boolean logicalExpire, Supplier<R> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = inFlightLoads.putIfAbsent(key, future);
+        if (inFlight != null) {
+            //已有请求在加载，等待它的结果
+            try {
+                return type.cast(inFlight.get(singleFlightWaitMillis, TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                //等待超时，自己查询数据库
+                log.warn("等待缓存加载超时, key:{}", key);
+                return loader.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
         }
-        //实现缓存重建
-        //获取互斥锁
-        String lockKey= null;
-        R r= null;
         try {
-            lockKey = lockKeyPrefix+id;
-            boolean isLock = tryLock(lockKey);
-            //判断是否获取成功
-            if(!isLock){
-                //失败则休眠并重试
-                Thread.sleep(50);
-                return  queryWithMutex(id, keyPrefix,lockKeyPrefix,type,dbFallback,time,unit);
-            }
-            //成功，根据id查询数据库
-            r=dbFallback.apply(id);
-            if(r==null){
-                //5.不存在，返回错误
-                //将空值写入redis
+            R r = lockKey == null ? loader.get() : loadWithLock(key, lockKey, type, logicalExpire, loader);
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(key, future);
+        }
+    }
 
-                return null;
+    /**
+     * 获取跨节点的互斥锁后加载，获取失败时轮询redis等待其他节点写入，最多等待singleFlightWaitMillis
+     */
+    private <R> R loadWithLock(String key, String lockKey, Class<R> type, boolean logicalExpire, Supplier<R> loader) {
+        long deadline = System.currentTimeMillis() + singleFlightWaitMillis;
+        String token;
+        while ((token = tryLock(lockKey)) == null) {
+            CachedValue<R> cached = read(key, type, logicalExpire);
+            if (cached != null) {
+                //其他节点已经写入缓存
+                return cached.getData();
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                log.warn("等待其他节点重建缓存超时, key:{}", key);
+                return loader.get();
+            }
+            try {
+                Thread.sleep(LOCK_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
             }
-            //存在，写入redis
-            this.set(key,r,time,unit);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }finally {
-            //释放互斥锁
-            unLock(lockKey);
         }
-        //返回
-        return r;
+        try {
+            //获取锁后再检查一次，缓存可能刚被其他节点重建
+            CachedValue<R> cached = read(key, type, logicalExpire);
+            if (cached != null) {
+                return cached.getData();
+            }
+            return loader.get();
+        } finally {
+            unLock(lockKey, token);
+        }
     }
 
     /**
      * 上锁
      * @param key
-     * @return
+     * @return 锁的持有者标识，获取失败返回null
      */
-    private boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.MINUTES);
-        return BooleanUtil.isTrue(flag);
+    private String tryLock(String key){
+        String token = UUID.randomUUID().toString();
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, token, LOCK_SHOP_TTL, TimeUnit.MINUTES);
+        return BooleanUtil.isTrue(flag) ? token : null;
     }
 
     /**
-     * 释放锁
+     * 释放锁，只有持有者能释放
      * @param key
+     * @param token
      */
-    private void unLock(String key){
-        stringRedisTemplate.delete(key);
+    private void unLock(String key, String token){
+        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(key), token);
     }
 
 }
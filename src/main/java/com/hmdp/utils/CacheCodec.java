@@ -0,0 +1,24 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码器，实现类注册为spring bean即可被CacheClient使用
+ * 按@Order顺序选择第一个支持该类型的编解码器，id写入缓存值的头部，发布后不能修改
+ */
+public interface CacheCodec {
+
+    /**
+     * 编解码器id，不能重复
+     */
+    byte id();
+
+    /**
+     * 是否支持该类型
+     * @param type
+     * @return
+     */
+    boolean supports(Class<?> type);
+
+    byte[] encode(Object value) throws Exception;
+
+    <T> T decode(byte[] data, int offset, int length, Class<T> type) throws Exception;
+}
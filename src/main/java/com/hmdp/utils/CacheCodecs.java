@@ -0,0 +1,121 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 缓存值的格式：
+ * 新格式 = 魔数(1字节) + 格式版本(1字节) + 编解码器id(1字节) + 逻辑过期时间毫秒(8字节) + 数据
+ * 旧格式 = json文本，逻辑过期的数据为RedisData的json
+ * 读取时两种格式都支持，写入格式由hmdp.cache.codec.binary-enabled控制，所有节点升级后再打开
+ */
+@Slf4j
+@Component
+public class CacheCodecs {
+    //json文本不会以0开头
+    private static final byte MAGIC = 0;
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 11;
+
+    @Resource
+    private List<CacheCodec> codecs;
+    @Value("${hmdp.cache.codec.binary-enabled:false}")
+    private boolean binaryEnabled;
+
+    private final Map<Byte, CacheCodec> codecById = new HashMap<>();
+
+    @PostConstruct
+    private void init() {
+        for (CacheCodec codec : codecs) {
+            if (codecById.put(codec.id(), codec) != null) {
+                throw new IllegalStateException("缓存编解码器id重复: " + codec.id());
+            }
+        }
+    }
+
+    /**
+     * 编码缓存值
+     * @param value
+     * @param expireAt 逻辑过期时间(毫秒)，0表示没有逻辑过期
+     * @return
+     */
+    public byte[] encode(Object value, long expireAt) {
+        if (!binaryEnabled || value == null) {
+            return encodeLegacy(value, expireAt);
+        }
+        for (CacheCodec codec : codecs) {
+            if (!codec.supports(value.getClass())) {
+                continue;
+            }
+            try {
+                byte[] data = codec.encode(value);
+                return ByteBuffer.allocate(HEADER_LENGTH + data.length)
+                        .put(MAGIC).put(FORMAT_VERSION).put(codec.id()).putLong(expireAt)
+                        .put(data)
+                        .array();
+            } catch (Exception e) {
+                log.error("缓存编码失败, codec:{}", codec.id(), e);
+            }
+        }
+        return encodeLegacy(value, expireAt);
+    }
+
+    /**
+     * 解码缓存值
+     * @param raw 非空的缓存值
+     * @param type
+     * @param logicalExpire 旧格式是否是RedisData包装的数据
+     * @return 无法解码时返回null，调用方按未命中处理
+     */
+    public <T> CachedValue<T> decode(byte[] raw, Class<T> type, boolean logicalExpire) {
+        try {
+            if (raw.length >= HEADER_LENGTH && raw[0] == MAGIC) {
+                ByteBuffer buffer = ByteBuffer.wrap(raw);
+                buffer.get();
+                byte version = buffer.get();
+                CacheCodec codec = codecById.get(buffer.get());
+                if (version != FORMAT_VERSION || codec == null) {
+                    log.warn("无法识别的缓存格式, version:{}, codec:{}", version, raw[2]);
+                    return null;
+                }
+                long expireAt = buffer.getLong();
+                T data = codec.decode(raw, HEADER_LENGTH, raw.length - HEADER_LENGTH, type);
+                return new CachedValue<>(data, expireAt);
+            }
+            String json = new String(raw, StandardCharsets.UTF_8);
+            if (!logicalExpire) {
+                return new CachedValue<>(JSONUtil.toBean(json, type), 0);
+            }
+            RedisData redisData = JSONUtil.toBean(json, RedisData.class);
+            long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            return new CachedValue<>(JSONUtil.toBean((JSONObject) redisData.getData(), type), expireAt);
+        } catch (Exception e) {
+            log.error("缓存解码失败, type:{}", type.getName(), e);
+            return null;
+        }
+    }
+
+    private byte[] encodeLegacy(Object value, long expireAt) {
+        if (expireAt <= 0) {
+            return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireAt), ZoneId.systemDefault()));
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+}
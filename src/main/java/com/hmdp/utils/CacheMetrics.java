@@ -0,0 +1,111 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.CacheMetricsSnapshot;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按key前缀统计缓存命中和数据库加载耗时，只使用LongAdder累加，可以在生产环境常开
+ */
+@Component
+public class CacheMetrics {
+    //耗时分布的区间上限(毫秒)，最后一个区间没有上限
+    private static final long[] LATENCY_BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+
+    //key前缀 -> 统计
+    private final Map<String, PrefixMetrics> metrics = new ConcurrentHashMap<>();
+
+    public void recordLocalHit(String keyPrefix) {
+        get(keyPrefix).localHits.increment();
+    }
+
+    public void recordHit(String keyPrefix) {
+        get(keyPrefix).hits.increment();
+    }
+
+    public void recordNullHit(String keyPrefix) {
+        get(keyPrefix).nullHits.increment();
+    }
+
+    public void recordMiss(String keyPrefix) {
+        get(keyPrefix).misses.increment();
+    }
+
+    /**
+     * 记录一次数据库加载
+     * @param keyPrefix
+     * @param nanos 耗时(纳秒)
+     * @param success 是否成功
+     */
+    public void recordLoad(String keyPrefix, long nanos, boolean success) {
+        PrefixMetrics m = get(keyPrefix);
+        if (!success) {
+            m.loadErrors.increment();
+        }
+        m.loads.increment();
+        m.loadNanos.add(nanos);
+        long millis = nanos / 1_000_000;
+        int i = 0;
+        while (i < LATENCY_BOUNDS.length && millis > LATENCY_BOUNDS[i]) {
+            i++;
+        }
+        m.latency[i].increment();
+    }
+
+    public List<CacheMetricsSnapshot> snapshot() {
+        List<CacheMetricsSnapshot> result = new ArrayList<>(metrics.size());
+        metrics.forEach((prefix, m) -> {
+            CacheMetricsSnapshot s = new CacheMetricsSnapshot();
+            s.setPrefix(prefix);
+            s.setLocalHits(m.localHits.sum());
+            s.setHits(m.hits.sum());
+            s.setNullHits(m.nullHits.sum());
+            s.setMisses(m.misses.sum());
+            long served = s.getLocalHits() + s.getHits() + s.getNullHits();
+            long total = served + s.getMisses();
+            s.setHitRate(total == 0 ? 0 : (double) served / total);
+            long loads = m.loads.sum();
+            s.setLoads(loads);
+            s.setLoadErrors(m.loadErrors.sum());
+            s.setAvgLoadMillis(loads == 0 ? 0 : m.loadNanos.sum() / 1_000_000.0 / loads);
+            Map<String, Long> latency = new LinkedHashMap<>();
+            for (int i = 0; i < m.latency.length; i++) {
+                String bucket = i < LATENCY_BOUNDS.length
+                        ? "<=" + LATENCY_BOUNDS[i] + "ms"
+                        : ">" + LATENCY_BOUNDS[LATENCY_BOUNDS.length - 1] + "ms";
+                latency.put(bucket, m.latency[i].sum());
+            }
+            s.setLoadLatency(latency);
+            result.add(s);
+        });
+        return result;
+    }
+
+    private PrefixMetrics get(String keyPrefix) {
+        PrefixMetrics m = metrics.get(keyPrefix);
+        return m != null ? m : metrics.computeIfAbsent(keyPrefix, k -> new PrefixMetrics());
+    }
+
+    private static final class PrefixMetrics {
+        private final LongAdder localHits = new LongAdder();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder nullHits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder loads = new LongAdder();
+        private final LongAdder loadErrors = new LongAdder();
+        private final LongAdder loadNanos = new LongAdder();
+        private final LongAdder[] latency = new LongAdder[LATENCY_BOUNDS.length + 1];
+
+        private PrefixMetrics() {
+            for (int i = 0; i < latency.length; i++) {
+                latency[i] = new LongAdder();
+            }
+        }
+    }
+}
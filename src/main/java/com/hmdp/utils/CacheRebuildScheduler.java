@@ -0,0 +1,144 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.CacheRebuildStats;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.atomic.LongAccumulator;
+
+import static com.hmdp.utils.RedisScripts.UNLOCK_SCRIPT;
+
+/**
+ * 缓存重建线程池，队列有界，同一个key同时只有一个重建任务
+ * 队列满时直接跳过，调用方继续返回旧数据；互斥锁的值是本次任务的标识，只有持有者能释放
+ */
+@Slf4j
+@Component
+public class CacheRebuildScheduler {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Value("${hmdp.cache.rebuild.threads:10}")
+    private int threads;
+    @Value("${hmdp.cache.rebuild.queue-capacity:1000}")
+    private int queueCapacity;
+    //互斥锁的过期时间，需要大于排队加重建的耗时
+    @Value("${hmdp.cache.rebuild.lock-ttl-seconds:30}")
+    private long lockTtlSeconds;
+
+    private ThreadPoolExecutor executor;
+    //正在排队或执行的key
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder totalLatency = new LongAdder();
+    private final LongAccumulator maxLatency = new LongAccumulator(Math::max, 0);
+
+    @PostConstruct
+    private void init() {
+        AtomicInteger index = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                r -> new Thread(r, "cache-rebuild-" + index.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.warn("缓存重建任务未在10秒内完成，强制停止");
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 提交重建任务
+     * @param key 缓存key，用于去重
+     * @param lockKey 跨节点互斥锁的key
+     * @param rebuild 查询数据库并写入缓存
+     * @return 是否提交成功，重复、未获取到锁或队列已满时返回false
+     */
+    public boolean submit(String key, String lockKey, Runnable rebuild) {
+        if (!inFlight.add(key)) {
+            deduplicated.increment();
+            return false;
+        }
+        String token = UUID.randomUUID().toString();
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, token, lockTtlSeconds, TimeUnit.SECONDS);
+        if (!Boolean.TRUE.equals(locked)) {
+            inFlight.remove(key);
+            return false;
+        }
+        try {
+            executor.execute(() -> run(key, lockKey, token, rebuild));
+            submitted.increment();
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            log.warn("缓存重建队列已满，跳过: {}", key);
+            release(key, lockKey, token);
+            return false;
+        }
+    }
+
+    private void run(String key, String lockKey, String token, Runnable rebuild) {
+        long begin = System.currentTimeMillis();
+        try {
+            rebuild.run();
+            completed.increment();
+        } catch (Exception e) {
+            failed.increment();
+            log.error("缓存重建失败, key:{}", key, e);
+        } finally {
+            long cost = System.currentTimeMillis() - begin;
+            totalLatency.add(cost);
+            maxLatency.accumulate(cost);
+            release(key, lockKey, token);
+        }
+    }
+
+    private void release(String key, String lockKey, String token) {
+        try {
+            stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(lockKey), token);
+        } catch (Exception e) {
+            log.error("释放缓存重建锁失败, lockKey:{}", lockKey, e);
+        } finally {
+            inFlight.remove(key);
+        }
+    }
+
+    public CacheRebuildStats stats() {
+        CacheRebuildStats stats = new CacheRebuildStats();
+        stats.setQueueSize(executor.getQueue().size());
+        stats.setActive(executor.getActiveCount());
+        stats.setSubmitted(submitted.sum());
+        long done = completed.sum();
+        long failures = failed.sum();
+        stats.setCompleted(done);
+        stats.setFailed(failures);
+        stats.setDeduplicated(deduplicated.sum());
+        stats.setRejected(rejected.sum());
+        stats.setAvgLatencyMillis(done + failures == 0 ? 0 : (double) totalLatency.sum() / (done + failures));
+        stats.setMaxLatencyMillis(maxLatency.get());
+        return stats;
+    }
+}
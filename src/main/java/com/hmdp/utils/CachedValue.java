@@ -0,0 +1,11 @@
+package com.hmdp.utils;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class CachedValue<T> {
+    private T data;
+    private long expireAt; //逻辑过期时间(毫秒)，0表示没有逻辑过期
+}
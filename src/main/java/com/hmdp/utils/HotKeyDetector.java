@@ -0,0 +1,172 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.HotKey;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.stream.Collectors;
+
+/**
+ * 热点key探测，按比例采样访问记录，用count-min sketch估算每个key在当前窗口内的访问次数
+ * 超过阈值的key标记为热点一段时间，由调用方固定到本地缓存；每个窗口结束时保存各前缀的top-K
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096;
+
+    @Value("${hmdp.cache.hot-key.enabled:true}")
+    private boolean enabled;
+    //采样比例
+    @Value("${hmdp.cache.hot-key.sample-rate:0.1}")
+    private double sampleRate;
+    //一个窗口内估算访问次数超过该值视为热点
+    @Value("${hmdp.cache.hot-key.threshold:1000}")
+    private long threshold;
+    @Value("${hmdp.cache.hot-key.top-k:10}")
+    private int topK;
+    //热点key固定在本地缓存的时间
+    @Value("${hmdp.cache.hot-key.pin-seconds:5}")
+    private long pinSeconds;
+    //同时标记的热点key上限，达到上限后不再标记新的热点
+    @Value("${hmdp.cache.hot-key.max-hot-keys:1000}")
+    private int maxHotKeys;
+
+    //key前缀 -> 当前窗口的统计
+    private volatile Map<String, Window> windows = new ConcurrentHashMap<>();
+    //key前缀 -> 上一个窗口的top-K
+    private volatile Map<String, List<HotKey>> lastTopKeys = Collections.emptyMap();
+    //热点key -> 热点标记的过期时间
+    private final Map<String, Long> hotKeys = new ConcurrentHashMap<>();
+
+    /**
+     * 记录一次访问
+     * @param keyPrefix
+     * @param key
+     * @return key当前是否是热点
+     */
+    public boolean record(String keyPrefix, String key) {
+        if (!enabled) {
+            return false;
+        }
+        if (ThreadLocalRandom.current().nextDouble() < sampleRate) {
+            Window window = windows.computeIfAbsent(keyPrefix, k -> new Window());
+            long count = (long) (window.add(key) / sampleRate);
+            if (count >= threshold && pin(key)) {
+                log.info("发现热点key: {}, 估算访问次数: {}", key, count);
+            }
+        }
+        return isHot(key);
+    }
+
+    /**
+     * 标记或续期热点key，已有的热点总是续期，新的热点只在未达到上限时标记
+     * @return 是否新标记的热点
+     */
+    private boolean pin(String key) {
+        long expireAt = System.currentTimeMillis() + pinSeconds * 1000;
+        if (hotKeys.replace(key, expireAt) != null || hotKeys.size() >= maxHotKeys) {
+            return false;
+        }
+        return hotKeys.putIfAbsent(key, expireAt) == null;
+    }
+
+    public boolean isHot(String key) {
+        Long expireAt = hotKeys.get(key);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt > System.currentTimeMillis()) {
+            return true;
+        }
+        hotKeys.remove(key, expireAt);
+        return false;
+    }
+
+    public long getPinMillis() {
+        return pinSeconds * 1000;
+    }
+
+    /**
+     * 上一个统计窗口各前缀的top-K
+     */
+    public Map<String, List<HotKey>> topKeys() {
+        return lastTopKeys;
+    }
+
+    /**
+     * 切换统计窗口，并清理过期的热点标记，不再被访问的key不会经过isHot清理
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.hot-key.window-ms:10000}")
+    public void rotate() {
+        long now = System.currentTimeMillis();
+        hotKeys.entrySet().removeIf(e -> e.getValue() <= now);
+        Map<String, Window> old = windows;
+        windows = new ConcurrentHashMap<>();
+        Map<String, List<HotKey>> top = new HashMap<>(old.size());
+        old.forEach((prefix, window) -> top.put(prefix, window.top(topK, sampleRate)));
+        lastTopKeys = top;
+    }
+
+    /**
+     * 一个前缀在一个窗口内的统计：count-min sketch加上访问次数最多的候选key
+     */
+    private static final class Window {
+        private final AtomicLongArray counters = new AtomicLongArray(DEPTH * WIDTH);
+        private final Map<String, Long> candidates = new ConcurrentHashMap<>();
+
+        private long add(String key) {
+            long h = key.hashCode();
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                int index = i * WIDTH + (int) Math.floorMod(mix(h + i * 0x9E3779B97F4A7C15L), (long) WIDTH);
+                min = Math.min(min, counters.incrementAndGet(index));
+            }
+            candidates.put(key, min);
+            if (candidates.size() > 1024) {
+                trim(256);
+            }
+            return min;
+        }
+
+        private synchronized void trim(int keep) {
+            if (candidates.size() <= keep) {
+                return;
+            }
+            List<Map.Entry<String, Long>> entries = new ArrayList<>(candidates.entrySet());
+            entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+            for (int i = keep; i < entries.size(); i++) {
+                candidates.remove(entries.get(i).getKey(), entries.get(i).getValue());
+            }
+        }
+
+        private List<HotKey> top(int k, double sampleRate) {
+            return candidates.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                    .limit(k)
+                    .map(e -> new HotKey(e.getKey(), (long) (e.getValue() / sampleRate)))
+                    .collect(Collectors.toList());
+        }
+
+        private static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb93fe53e87cdL;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * json编解码器，支持所有类型，优先级最低
+ */
+@Component
+@Order(Ordered.LOWEST_PRECEDENCE)
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte id() {
+        return 1;
+    }
+
+    @Override
+    public boolean supports(Class<?> type) {
+        return true;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] data, int offset, int length, Class<T> type) {
+        return JSONUtil.toBean(new String(data, offset, length, StandardCharsets.UTF_8), type);
+    }
+}
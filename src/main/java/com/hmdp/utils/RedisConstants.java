@@ -10,14 +10,34 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_BLOOM_CHANNEL = "cache:bloom";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String CACHE_LOCK_KEY = "lock:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_EPOCH_KEY = "seckill:epoch:";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String ORDER_STATUS_KEY = "order:status:";
+    public static final Long ORDER_STATUS_TTL = 30L;
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
+    public static final String FEED_OUTBOX_KEY = "feed:outbox:";
+    public static final String FEED_BIG_AUTHORS_KEY = "feed:big-authors";
+    public static final String FEED_FANOUT_KEY = "fanout:task:";
+    public static final String FEED_FANOUT_PENDING_KEY = "fanout:pending";
+    public static final String LOCK_FANOUT_KEY = "lock:fanout:";
+    public static final String FOLLOWS_LOADED_KEY = "follows:loaded:";
+    public static final Long FOLLOWS_LOADED_TTL = 1440L;
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
     public static final String SHOP_LIST_KEY= "shop:list:";
+    public static final String SHOP_TYPE_VERSION_KEY = "shop:type:version";
+    public static final String SHOP_TYPE_VERSION_CHANNEL = "shop:type:changed";
 }
@@ -1,12 +1,21 @@
 package com.hmdp.utils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
     /**
@@ -14,29 +23,169 @@ public class RedisIdWorker {
      */
     private static final long BEGIN_TIMESTAMP =1741046400L;
     private static final int COUNT_BITS =32;
+    private static final long SECONDS_PER_DAY =86400L;
+    private static final DateTimeFormatter DATE_FORMATTER =DateTimeFormatter.ofPattern("yyyyMMdd");
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * 号段大小，大于0时每次用INCRBY预留一段序列号在本地发放，0表示每个id都访问redis
+     */
+    @Value("${hmdp.id-worker.segment-size:0}")
+    private int segmentSize;
+
+    //当前日期，跨天时才重新计算
+    private volatile Day currentDay;
+    //业务前缀 -> 号段
+    private final Map<String, SegmentHolder> segments =new ConcurrentHashMap<>();
+    //后台预取下一个号段的线程
+    private static final ExecutorService SEGMENT_PREFETCH_EXECUTOR =Executors.newSingleThreadExecutor(r->{
+        Thread thread=new Thread(r,"id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /**
      * 使用redis生成全局唯一id
      * @param keyPrefix
      * @return
      */
     public long nextId(String keyPrefix){
-        //1.生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond=now.toEpochSecond(ZoneOffset.UTC);
+        //1.生成时间戳，与LocalDateTime.now().toEpochSecond(ZoneOffset.UTC)一致
+        Day day=currentDay;
+        long nowSecond=System.currentTimeMillis()/1000+(day==null?0:day.offsetSeconds);
+        if(day==null||nowSecond>=day.endSecond){
+            day=refreshDay();
+            nowSecond=System.currentTimeMillis()/1000+day.offsetSeconds;
+        }
         long timestamp = nowSecond-BEGIN_TIMESTAMP;
 
         //2.生成序列号
-        //自增长
-        String date = now.format(DateTimeFormatter.ofPattern("yyyyMMdd"));
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count = segmentSize>0 ? nextFromSegment(keyPrefix, day) : nextFromRedis(keyPrefix, day);
         //3.拼接并返回
         return timestamp<<COUNT_BITS | count;
     }
 
+    /**
+     * 自增长，每个id一次redis请求
+     */
+    private long nextFromRedis(String keyPrefix, Day day){
+        return stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + day.date);
+    }
+
+    /**
+     * 从本地号段发放序列号，号段用完时切换到预取的号段
+     */
+    private long nextFromSegment(String keyPrefix, Day day){
+        SegmentHolder holder=segments.get(keyPrefix);
+        if(holder==null){
+            holder=segments.computeIfAbsent(keyPrefix, k->new SegmentHolder());
+        }
+        while(true){
+            Segment segment=holder.current;
+            if(segment!=null&&segment.date.equals(day.date)){
+                long value=segment.cursor.getAndIncrement();
+                if(value<=segment.end){
+                    if(value==segment.prefetchAt){
+                        //号段使用到一定比例，后台预取下一个号段
+                        prefetch(keyPrefix, holder, day);
+                    }
+                    return value;
+                }
+            }
+            //号段用完或已跨天，切换号段
+            synchronized (holder){
+                if(holder.current!=segment){
+                    //其他线程已经切换过了
+                    continue;
+                }
+                Segment next=holder.next;
+                holder.next=null;
+                if(next==null||!next.date.equals(day.date)){
+                    next=allocate(keyPrefix, day);
+                }
+                holder.current=next;
+            }
+        }
+    }
+
+    private void prefetch(String keyPrefix, SegmentHolder holder, Day day){
+        SEGMENT_PREFETCH_EXECUTOR.execute(()->{
+            try {
+                Segment next=allocate(keyPrefix, day);
+                synchronized (holder){
+                    if(holder.next==null){
+                        holder.next=next;
+                    }
+                }
+            } catch (Exception e) {
+                //预取失败不影响发号，号段用完时会同步申请
+                log.error("预取号段失败, keyPrefix:{}", keyPrefix, e);
+            }
+        });
+    }
+
+    /**
+     * 用一次INCRBY向redis申请一个号段
+     */
+    private Segment allocate(String keyPrefix, Day day){
+        Long max=stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + day.date, segmentSize);
+        return new Segment(day.date, max-segmentSize+1, max);
+    }
+
+    private synchronized Day refreshDay(){
+        long offsetSeconds=ZoneId.systemDefault().getRules().getOffset(Instant.now()).getTotalSeconds();
+        long nowSecond=System.currentTimeMillis()/1000+offsetSeconds;
+        Day day=currentDay;
+        if(day!=null&&nowSecond<day.endSecond&&day.offsetSeconds==offsetSeconds){
+            return day;
+        }
+        long epochDay=Math.floorDiv(nowSecond, SECONDS_PER_DAY);
+        String date=LocalDate.ofEpochDay(epochDay).format(DATE_FORMATTER);
+        day=new Day(date, offsetSeconds, (epochDay+1)*SECONDS_PER_DAY);
+        currentDay=day;
+        return day;
+    }
+
+    /**
+     * 当天的日期信息
+     */
+    private static final class Day {
+        private final String date;
+        private final long offsetSeconds;
+        private final long endSecond;
+
+        private Day(String date, long offsetSeconds, long endSecond) {
+            this.date = date;
+            this.offsetSeconds = offsetSeconds;
+            this.endSecond = endSecond;
+        }
+    }
+
+    /**
+     * 一段连续的序列号[cursor,end]
+     */
+    private static final class Segment {
+        private final String date;
+        private final AtomicLong cursor;
+        private final long end;
+        private final long prefetchAt;
+
+        private Segment(String date, long start, long end) {
+            this.date = date;
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+            //使用到80%时预取
+            this.prefetchAt = start+(end-start+1)*4/5;
+        }
+    }
+
+    private static final class SegmentHolder {
+        private volatile Segment current;
+        private volatile Segment next;
+    }
+
 //    public static void main(String[] args) {
 //        LocalDateTime time = LocalDateTime.of(2025,3,4,0,0,0);
 //        long second=time.toEpochSecond(ZoneOffset.UTC);
@@ -0,0 +1,32 @@
+package com.hmdp.utils;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+/**
+ * 项目中用到的lua脚本，启动时由预热任务SCRIPT LOAD，执行时走EVALSHA
+ */
+public class RedisScripts {
+    public static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    public static final DefaultRedisScript<Long> SECKILL_BORROW_SCRIPT;
+    public static final DefaultRedisScript<Long> DEAD_LETTER_SCRIPT;
+    public static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    public static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("Seckill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_BORROW_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_BORROW_SCRIPT.setLocation(new ClassPathResource("SeckillBorrow.lua"));
+        SECKILL_BORROW_SCRIPT.setResultType(Long.class);
+        DEAD_LETTER_SCRIPT = new DefaultRedisScript<>();
+        DEAD_LETTER_SCRIPT.setLocation(new ClassPathResource("DeadLetter.lua"));
+        DEAD_LETTER_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+}
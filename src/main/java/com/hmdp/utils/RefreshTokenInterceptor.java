@@ -13,9 +13,11 @@ import java.util.concurrent.TimeUnit;
 
 public class RefreshTokenInterceptor implements HandlerInterceptor {
     private StringRedisTemplate stringRedisTemplate;
+    private CacheMetrics cacheMetrics;
 
-    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate) {
+    public RefreshTokenInterceptor(StringRedisTemplate stringRedisTemplate, CacheMetrics cacheMetrics) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheMetrics = cacheMetrics;
     }
     @Override
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
@@ -36,8 +38,10 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
 
         //3.判断用户是否存在
         if(userMap.isEmpty()){
+            cacheMetrics.recordMiss(RedisConstants.LOGIN_USER_KEY);
             return true;
         }
+        cacheMetrics.recordHit(RedisConstants.LOGIN_USER_KEY);
         //5.将查询到的Hash数据转换成UserDTO对象
         UserDTO userDTO= BeanUtil.fillBeanWithMap(userMap,new UserDTO(),false);
         //6.存在，保存用户信息到ThreadLocal
@@ -0,0 +1,45 @@
+package com.hmdp.utils;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀库存和下单集合的key
+ * 分片模式下同一分片的库存和下单集合使用相同的hash tag
+ * 分片只支持单节点redis：秒杀脚本还会写入全局的订单队列、时间窗口和订单状态，借库存脚本同时操作两个分片，
+ * 这些key不在同一个slot，在redis集群上会报CROSSSLOT。单节点上分片也不会提高吞吐，只是把一张券的一人一单集合拆小
+ */
+public class SeckillKeys {
+
+    /**
+     * 库存key
+     * @param voucherId
+     * @param shards 分片数，1表示不分片
+     * @param shard 分片序号
+     * @return
+     */
+    public static String stockKey(Long voucherId, int shards, int shard) {
+        return shards <= 1 ? SECKILL_STOCK_KEY + voucherId : SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 下单用户集合key
+     * @param voucherId
+     * @param shards 分片数，1表示不分片
+     * @param shard 分片序号
+     * @return
+     */
+    public static String orderKey(Long voucherId, int shards, int shard) {
+        return shards <= 1 ? SECKILL_ORDER_KEY + voucherId : SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 用户所在的分片，同一用户总是落在同一个分片，一人一单的判断只需要查这一个集合
+     * @param userId
+     * @param shards
+     * @return
+     */
+    public static int homeShard(Long userId, int shards) {
+        return shards <= 1 ? 0 : (int) Math.floorMod(userId, (long) shards);
+    }
+}
@@ -0,0 +1,157 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_EPOCH_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本地售罄标记，售罄后的秒杀请求直接在JVM内拒绝，不再访问redis
+ * 标记通过redis发布订阅同步到所有节点，并在一段时间后自动失效，防止补货后被旧标记挡住
+ * 每次补货库存版本加一，补货前发出的请求带着旧版本回来时不会再标记售罄
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry implements MessageListener {
+    private static final String SOLD_OUT = "+";
+    private static final String RESET = "-";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    //售罄标记的有效时间
+    @Value("${hmdp.seckill.sold-out-ttl-seconds:30}")
+    private long soldOutTtlSeconds;
+
+    //优惠券id -> 已知的最新库存版本
+    private final Map<Long, Long> epochs = new ConcurrentHashMap<>();
+    //优惠券id -> 售罄标记
+    private final Map<Long, Mark> soldOutMap = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 当前库存版本，秒杀请求在访问redis之前读取，售罄时带回
+     * @param voucherId
+     * @return
+     */
+    public long currentEpoch(Long voucherId) {
+        return epochs.getOrDefault(voucherId, 0L);
+    }
+
+    /**
+     * 判断优惠券是否已售罄
+     * @param voucherId
+     * @return
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Mark mark = soldOutMap.get(voucherId);
+        if (mark == null) {
+            return false;
+        }
+        if (mark.epoch >= currentEpoch(voucherId)
+                && System.currentTimeMillis() - mark.markTime < soldOutTtlSeconds * 1000) {
+            return true;
+        }
+        //标记过期或已补货，放行一次请求重新到redis确认库存
+        soldOutMap.remove(voucherId, mark);
+        return false;
+    }
+
+    /**
+     * 标记优惠券售罄并通知其他节点
+     * @param voucherId
+     * @param epoch 请求发出前读取的库存版本
+     */
+    public void markSoldOut(Long voucherId, long epoch) {
+        if (putMark(voucherId, epoch)) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId + ":" + epoch);
+        }
+    }
+
+    /**
+     * 补货后库存版本加一，清除旧的售罄标记并通知其他节点
+     * @param voucherId
+     */
+    public void reset(Long voucherId) {
+        Long epoch = stringRedisTemplate.opsForValue().increment(SECKILL_EPOCH_KEY + voucherId);
+        if (epoch == null) {
+            return;
+        }
+        advance(voucherId, epoch);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, RESET + voucherId + ":" + epoch);
+    }
+
+    /**
+     * 写入售罄标记，版本比已知版本旧的标记直接丢弃
+     * compute与advance中的computeIfPresent对同一个key互斥，补货和旧请求的标记不会交错
+     * @return 是否写入了新的标记
+     */
+    private boolean putMark(Long voucherId, long epoch) {
+        boolean[] added = new boolean[1];
+        soldOutMap.compute(voucherId, (id, old) -> {
+            if (epoch < currentEpoch(id) || (old != null && old.epoch >= epoch)) {
+                return old;
+            }
+            added[0] = true;
+            return new Mark(epoch, System.currentTimeMillis());
+        });
+        return added[0];
+    }
+
+    private void advance(Long voucherId, long epoch) {
+        epochs.merge(voucherId, epoch, Math::max);
+        soldOutMap.computeIfPresent(voucherId, (id, mark) -> mark.epoch < epoch ? null : mark);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            int split = body.indexOf(':');
+            Long voucherId = Long.valueOf(body.substring(1, split));
+            long epoch = Long.parseLong(body.substring(split + 1));
+            if (body.startsWith(SOLD_OUT)) {
+                //其他节点已经看到更新的版本，说明本节点错过了补货消息
+                epochs.merge(voucherId, epoch, Math::max);
+                putMark(voucherId, epoch);
+            } else if (body.startsWith(RESET)) {
+                advance(voucherId, epoch);
+            }
+        } catch (Exception e) {
+            log.error("售罄消息格式错误: {}", body, e);
+        }
+    }
+
+    /**
+     * 售罄标记
+     */
+    private static final class Mark {
+        //标记时的库存版本
+        private final long epoch;
+        //标记售罄的时间
+        private final long markTime;
+
+        private Mark(long epoch, long markTime) {
+            this.epoch = epoch;
+            this.markTime = markTime;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+
+/**
+ * 秒杀时间窗口和库存分片数的本地缓存，定时从数据库刷新未结束和刚结束的秒杀券
+ * 同时把窗口写入redis，供Seckill.lua原子校验
+ * 已结束的券也保留窗口，结束后的请求在生成订单id之前就被拒绝；不存在的券记录在短期的否定缓存中
+ */
+@Slf4j
+@Component
+public class SeckillWindowCache {
+    //否定缓存的最大数量
+    private static final int MISSING_CACHE_SIZE = 10000;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Value("${hmdp.seckill.window-refresh-ms:10000}")
+    private long refreshMs;
+    //秒杀结束后窗口继续保留的时间，redis中的窗口同样在此之后过期
+    @Value("${hmdp.seckill.window-retention-hours:24}")
+    private long retentionHours;
+
+    //优惠券id -> 秒杀窗口，只读快照，所有写入都通过swap替换
+    private volatile Map<Long, Window> windows = Collections.emptyMap();
+    //数据库中不存在的优惠券id
+    private LRUCache<Long, Boolean> missing;
+
+    @PostConstruct
+    private void init() {
+        missing = CacheUtil.newLRUCache(MISSING_CACHE_SIZE, refreshMs);
+        try {
+            refresh();
+        } catch (Exception e) {
+            log.error("加载秒杀时间窗口失败", e);
+        }
+    }
+
+    /**
+     * 定时刷新未结束和结束不久的秒杀券时间窗口
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.window-refresh-ms:10000}")
+    public void refresh() {
+        long start = System.currentTimeMillis();
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .select("voucher_id", "stock_shards", "begin_time", "end_time")
+                .gt("end_time", LocalDateTime.now().minusHours(retentionHours))
+                .list();
+        Map<Long, Window> loaded = new HashMap<>(vouchers.size() * 2);
+        for (SeckillVoucher voucher : vouchers) {
+            loaded.put(voucher.getVoucherId(), toWindow(voucher));
+        }
+        //查询开始后本地新写入的窗口可能还没有提交，保留下来，不被这次刷新覆盖
+        swap(old -> {
+            Map<Long, Window> next = new HashMap<>(loaded);
+            old.forEach((voucherId, window) -> {
+                if (window.loadedAt >= start) {
+                    next.putIfAbsent(voucherId, window);
+                }
+            });
+            return next;
+        });
+        //同步到redis，防止redis数据丢失或时间被修改
+        saveToRedis(loaded);
+    }
+
+    /**
+     * 保存新秒杀券的时间窗口
+     * @param voucherId
+     * @param beginTime
+     * @param endTime
+     * @param stockShards
+     */
+    public void put(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime, int stockShards) {
+        Window window = new Window(toMillis(beginTime), toMillis(endTime), stockShards);
+        saveToRedis(Collections.singletonMap(voucherId, window));
+        missing.remove(voucherId);
+        swap(old -> {
+            Map<Long, Window> next = new HashMap<>(old);
+            next.put(voucherId, window);
+            return next;
+        });
+    }
+
+    /**
+     * 查询秒杀窗口，本地没有时从数据库加载，其他节点新建的券在下次刷新前也能拿到
+     * @param voucherId
+     * @return 秒杀券不存在时返回null
+     */
+    public Window get(Long voucherId) {
+        Window window = windows.get(voucherId);
+        if (window != null) {
+            return window;
+        }
+        if (missing.get(voucherId, false) != null) {
+            return null;
+        }
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null) {
+            missing.put(voucherId, Boolean.TRUE);
+            return null;
+        }
+        Window loaded = toWindow(voucher);
+        swap(old -> {
+            Map<Long, Window> next = new HashMap<>(old);
+            next.putIfAbsent(voucherId, loaded);
+            return next;
+        });
+        return loaded;
+    }
+
+    /**
+     * 唯一的写入路径，加锁后基于当前快照生成新快照
+     */
+    private synchronized void swap(UnaryOperator<Map<Long, Window>> change) {
+        windows = change.apply(windows);
+    }
+
+    /**
+     * 写入redis中的窗口，结束后保留retentionHours再过期
+     */
+    private void saveToRedis(Map<Long, Window> toSave) {
+        if (toSave.isEmpty()) {
+            return;
+        }
+        long retentionMillis = TimeUnit.HOURS.toMillis(retentionHours);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            toSave.forEach((voucherId, window) -> {
+                String key = SECKILL_WINDOW_KEY + voucherId;
+                conn.hMSet(key, toHash(window));
+                conn.pExpireAt(key, window.endMillis + retentionMillis);
+            });
+            return null;
+        });
+    }
+
+    private static Window toWindow(SeckillVoucher voucher) {
+        int shards = voucher.getStockShards() == null ? 1 : Math.max(1, voucher.getStockShards());
+        return new Window(toMillis(voucher.getBeginTime()), toMillis(voucher.getEndTime()), shards);
+    }
+
+    private static Map<String, String> toHash(Window window) {
+        Map<String, String> hash = new HashMap<>(4);
+        hash.put("begin", String.valueOf(window.beginMillis));
+        hash.put("end", String.valueOf(window.endMillis));
+        return hash;
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 秒杀窗口
+     */
+    public static final class Window {
+        //开始时间(毫秒)
+        private final long beginMillis;
+        //结束时间(毫秒)
+        private final long endMillis;
+        //库存分片数，1表示不分片
+        private final int stockShards;
+        //写入本地缓存的时间
+        private final long loadedAt;
+
+        public Window(long beginMillis, long endMillis, int stockShards) {
+            this.beginMillis = beginMillis;
+            this.endMillis = endMillis;
+            this.stockShards = stockShards;
+            this.loadedAt = System.currentTimeMillis();
+        }
+
+        public long getBeginMillis() {
+            return beginMillis;
+        }
+
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        public int getStockShards() {
+            return stockShards;
+        }
+    }
+}
@@ -1,14 +1,14 @@
 package com.hmdp.utils;
 
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 import java.util.Collections;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
+import static com.hmdp.utils.RedisScripts.UNLOCK_SCRIPT;
+
 @Slf4j
 public class SimpleRedisLock implements ILock{
     private final StringRedisTemplate stringRedisTemplate;
@@ -21,12 +21,6 @@ public class SimpleRedisLock implements ILock{
 
     private static final String KEY_PREFIX = "lock:";
     private static final String ID_PREFIX= UUID.randomUUID().toString()+"-";
-    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT ;
-    static {
-        UNLOCK_SCRIPT=new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
-        UNLOCK_SCRIPT.setResultType(Long.class);
-    }
 
     @Override
     public boolean tryLock(long timeoutSec) {
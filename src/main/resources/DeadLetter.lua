@@ -0,0 +1,12 @@
+-- 把超过投递次数的订单消息转入死信队列
+-- KEYS[1] 订单队列 KEYS[2] 死信队列
+-- ARGV[1] 消费者组 ARGV[2] 消息id ARGV[3...] 死信消息的field,value
+-- 先写死信队列再确认，两步在同一个脚本中执行，不会丢消息，也不会被其他节点重复转移
+local pending=redis.call('xpending',KEYS[1],ARGV[1],ARGV[2],ARGV[2],1)
+if(#pending==0) then
+    -- 已经被确认或被其他节点转移
+    return 0
+end
+redis.call('xadd',KEYS[2],'*',unpack(ARGV,3))
+redis.call('xack',KEYS[1],ARGV[1],ARGV[2])
+return 1
@@ -4,21 +4,42 @@
 --- DateTime: 2025/3/10 下午8:50
 ---
 
+-- 1.参数
+-- KEYS[1] 库存key，分片模式下为用户所在分片的库存
+-- KEYS[2] 下单用户集合key，分片模式下为用户所在分片的集合
+-- KEYS[3] 秒杀时间窗口key
+-- KEYS[4] 订单队列
+-- KEYS[5] 订单状态key
+local stockKey=KEYS[1]
+local orderKey=KEYS[2]
 -- 1.1 优惠券id
 local voucherId = ARGV[1]
 -- 1.2 用户id
 local userId=ARGV[2]
 -- 1.3订单id
 local orderId=ARGV[3]
-
--- 2.有关数据key
-local stockKey='seckill:stock:'.. voucherId
-local orderKey ='seckill:order:'.. voucherId
+-- 1.4当前时间(毫秒)
+local now=tonumber(ARGV[4])
+-- 1.5订单状态的过期时间(秒)
+local statusTtl=ARGV[5]
 
 -- 脚本业务
 
---判断优惠券是否充足
-if(tonumber(redis.call('get',stockKey))<=0) then
+-- 判断是否在秒杀时间内，没有时间窗口的券不做校验
+local window=redis.call('hmget',KEYS[3],'begin','end')
+if(window[1]) then
+    if(now<tonumber(window[1])) then
+        -- 尚未开始，返回3
+        return 3
+    end
+    if(now>tonumber(window[2])) then
+        -- 已经结束，返回4
+        return 4
+    end
+end
+--判断优惠券是否充足，库存尚未加载时同样视为不足
+local stock=tonumber(redis.call('get',stockKey))
+if(stock==nil or stock<=0) then
     -- 库存不足，返回1
     return 1
 end
@@ -32,6 +53,7 @@ redis.call('incrby',stockKey,-1)
 -- 下单
 redis.call('sadd',orderKey,userId)
 --发送消息到队列当中
-redis.call('xadd','stream.orders','*','userId',userId,'voucherId',voucherId,'id',orderId)
+redis.call('xadd',KEYS[4],'*','userId',userId,'voucherId',voucherId,'id',orderId)
+-- 记录订单状态为排队中
+redis.call('set',KEYS[5],'queued','EX',statusTtl)
 return 0
-
@@ -0,0 +1,12 @@
+-- 从相邻分片借库存到用户所在分片，最多借ARGV[1]个，扣减和增加在同一个脚本中完成
+-- KEYS[1] 被借用的分片库存key
+-- KEYS[2] 用户所在分片的库存key
+-- 返回实际借到的数量，0表示该分片已经没有库存
+local stock=tonumber(redis.call('get',KEYS[1]))
+if(stock==nil or stock<=0) then
+    return 0
+end
+local count=math.min(stock,tonumber(ARGV[1]))
+redis.call('incrby',KEYS[1],-count)
+redis.call('incrby',KEYS[2],count)
+return count
@@ -0,0 +1,7 @@
+-- 获取锁中的值
+local value = redis.call('get', KEYS[1])
+-- 只有锁的持有者才能续期
+if value == ARGV[1] then
+    return redis.call('expire', KEYS[1], ARGV[2])
+end
+return 0
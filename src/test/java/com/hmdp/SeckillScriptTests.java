@@ -0,0 +1,183 @@
+package com.hmdp;
+
+import com.hmdp.utils.SeckillKeys;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+import static com.hmdp.utils.RedisScripts.SECKILL_BORROW_SCRIPT;
+import static com.hmdp.utils.RedisScripts.SECKILL_SCRIPT;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 秒杀lua脚本的返回值，需要连接redis
+ * 使用单独的券id和订单队列，不会被应用中的消费者读取
+ */
+@SpringBootTest
+class SeckillScriptTests {
+    private static final Long VOUCHER_ID = 990000001L;
+    private static final String QUEUE = "stream.orders.test";
+    private static final int SHARDS = 4;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final List<String> keys = new ArrayList<>(Arrays.asList(QUEUE, SECKILL_WINDOW_KEY + VOUCHER_ID));
+    private long orderId = 1;
+
+    @AfterEach
+    void cleanUp() {
+        for (int shard = 0; shard < SHARDS; shard++) {
+            keys.add(SeckillKeys.stockKey(VOUCHER_ID, SHARDS, shard));
+            keys.add(SeckillKeys.orderKey(VOUCHER_ID, SHARDS, shard));
+        }
+        keys.add(SeckillKeys.stockKey(VOUCHER_ID, 1, 0));
+        keys.add(SeckillKeys.orderKey(VOUCHER_ID, 1, 0));
+        stringRedisTemplate.delete(keys);
+    }
+
+    @Test
+    void successDeductsStockAndQueuesOrder() {
+        setStock(1, 0, 10);
+
+        assertEquals(0, seckill(1, 0, 100L));
+
+        assertEquals("9", stringRedisTemplate.opsForValue().get(stockKey(1, 0)));
+        assertTrue(stringRedisTemplate.opsForSet().isMember(orderKey(1, 0), "100"));
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(QUEUE, Range.unbounded());
+        assertEquals(1, records.size());
+        Map<Object, Object> value = records.get(0).getValue();
+        assertEquals("100", value.get("userId"));
+        assertEquals(VOUCHER_ID.toString(), value.get("voucherId"));
+        assertEquals("1", value.get("id"));
+        assertEquals("queued", stringRedisTemplate.opsForValue().get(ORDER_STATUS_KEY + 1));
+        assertTrue(stringRedisTemplate.getExpire(ORDER_STATUS_KEY + 1, TimeUnit.SECONDS) > 0);
+    }
+
+    @Test
+    void soldOutReturnsOne() {
+        setStock(1, 0, 0);
+        assertEquals(1, seckill(1, 0, 100L));
+
+        //库存尚未加载同样视为不足
+        stringRedisTemplate.delete(stockKey(1, 0));
+        assertEquals(1, seckill(1, 0, 100L));
+
+        assertEquals(Long.valueOf(0), stringRedisTemplate.opsForStream().size(QUEUE));
+        assertFalse(stringRedisTemplate.opsForSet().isMember(orderKey(1, 0), "100"));
+    }
+
+    @Test
+    void alreadyBoughtReturnsTwo() {
+        setStock(1, 0, 10);
+
+        assertEquals(0, seckill(1, 0, 100L));
+        assertEquals(2, seckill(1, 0, 100L));
+
+        assertEquals("9", stringRedisTemplate.opsForValue().get(stockKey(1, 0)));
+        assertEquals(Long.valueOf(1), stringRedisTemplate.opsForStream().size(QUEUE));
+    }
+
+    @Test
+    void outsideWindowReturnsThreeOrFour() {
+        setStock(1, 0, 10);
+        long now = System.currentTimeMillis();
+        Map<String, String> window = new HashMap<>();
+        window.put("begin", String.valueOf(now + 60000));
+        window.put("end", String.valueOf(now + 120000));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_WINDOW_KEY + VOUCHER_ID, window);
+        assertEquals(3, seckill(1, 0, 100L, now));
+
+        window.put("begin", String.valueOf(now - 120000));
+        window.put("end", String.valueOf(now - 60000));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_WINDOW_KEY + VOUCHER_ID, window);
+        assertEquals(4, seckill(1, 0, 100L, now));
+
+        window.put("end", String.valueOf(now + 60000));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_WINDOW_KEY + VOUCHER_ID, window);
+        assertEquals(0, seckill(1, 0, 100L, now));
+        assertEquals("9", stringRedisTemplate.opsForValue().get(stockKey(1, 0)));
+    }
+
+    @Test
+    void emptyHomeShardBorrowsFromNeighbour() {
+        Long userId = 101L;
+        int home = SeckillKeys.homeShard(userId, SHARDS);
+        int neighbour = (home + 1) % SHARDS;
+        setStock(SHARDS, home, 0);
+        setStock(SHARDS, neighbour, 15);
+
+        assertEquals(1, seckill(SHARDS, home, userId));
+
+        //每次最多借10个，借出的库存在同一个脚本中加到所在分片
+        assertEquals(10L, borrow(SHARDS, neighbour, home, 10));
+        assertEquals("10", stringRedisTemplate.opsForValue().get(stockKey(SHARDS, home)));
+        assertEquals(0, seckill(SHARDS, home, userId));
+        assertEquals("9", stringRedisTemplate.opsForValue().get(stockKey(SHARDS, home)));
+        assertEquals("5", stringRedisTemplate.opsForValue().get(stockKey(SHARDS, neighbour)));
+
+        //剩余不足时借走全部，之后借不到
+        assertEquals(5L, borrow(SHARDS, neighbour, home, 10));
+        assertEquals(0L, borrow(SHARDS, neighbour, home, 10));
+        assertEquals("0", stringRedisTemplate.opsForValue().get(stockKey(SHARDS, neighbour)));
+        assertEquals("14", stringRedisTemplate.opsForValue().get(stockKey(SHARDS, home)));
+        //没有加载过的分片同样借不到，所在分片不变
+        assertEquals(0L, borrow(SHARDS, (home + 2) % SHARDS, home, 10));
+        assertEquals("14", stringRedisTemplate.opsForValue().get(stockKey(SHARDS, home)));
+    }
+
+    @Test
+    void shardsKeepOneOrderPerUser() {
+        Long userId = 102L;
+        int home = SeckillKeys.homeShard(userId, SHARDS);
+        setStock(SHARDS, home, 5);
+
+        assertEquals(0, seckill(SHARDS, home, userId));
+        assertEquals(2, seckill(SHARDS, home, userId));
+        assertTrue(stringRedisTemplate.opsForSet().isMember(orderKey(SHARDS, home), userId.toString()));
+    }
+
+    private int seckill(int shards, int shard, Long userId) {
+        return seckill(shards, shard, userId, System.currentTimeMillis());
+    }
+
+    private int seckill(int shards, int shard, Long userId, long now) {
+        long id = orderId++;
+        keys.add(ORDER_STATUS_KEY + id);
+        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
+                Arrays.asList(stockKey(shards, shard), orderKey(shards, shard), SECKILL_WINDOW_KEY + VOUCHER_ID, QUEUE, ORDER_STATUS_KEY + id),
+                VOUCHER_ID.toString(), userId.toString(), String.valueOf(id), String.valueOf(now), "60");
+        return result.intValue();
+    }
+
+    private long borrow(int shards, int from, int to, long max) {
+        Long borrowed = stringRedisTemplate.execute(SECKILL_BORROW_SCRIPT,
+                Arrays.asList(stockKey(shards, from), stockKey(shards, to)), String.valueOf(max));
+        return borrowed;
+    }
+
+    private void setStock(int shards, int shard, int stock) {
+        stringRedisTemplate.opsForValue().set(stockKey(shards, shard), String.valueOf(stock));
+    }
+
+    private static String stockKey(int shards, int shard) {
+        return SeckillKeys.stockKey(VOUCHER_ID, shards, shard);
+    }
+
+    private static String orderKey(int shards, int shard) {
+        return SeckillKeys.orderKey(VOUCHER_ID, shards, shard);
+    }
+}
@@ -0,0 +1,408 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.extension.conditions.query.QueryChainWrapper;
+import com.hmdp.dto.ScrollResult;
+import com.hmdp.entity.FeedTask;
+import com.hmdp.entity.Follow;
+import com.hmdp.service.IFeedTaskService;
+import com.hmdp.service.IFollowService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+import static com.hmdp.utils.RedisScripts.RENEW_SCRIPT;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * 关注流的多路归并与滚动分页的offset约定，以及推送任务的登记和分批推送
+ * redis用内存中的有序集合模拟，pipeline中的ZREVRANGEBYSCORE按真实语义返回
+ */
+class FeedServiceImplTests {
+    private static final Long USER_ID = 1L;
+
+    private FeedServiceImpl feedService;
+    private StringRedisTemplate stringRedisTemplate;
+    private SetOperations<String, String> setOps;
+    private ValueOperations<String, String> valueOps;
+    private IFollowService followService;
+    private IFeedTaskService feedTaskService;
+    private StringRedisConnection connection;
+    private ThreadPoolExecutor executor;
+    //粉丝关注记录，按主键递增
+    private final List<Follow> followers = new ArrayList<>();
+    //每次读取粉丝时的主键游标
+    private final List<Long> followCursors = new ArrayList<>();
+    //key -> (member -> score)
+    private final Map<String, Map<String, Double>> zsets = new HashMap<>();
+    //当前pipeline的返回结果
+    private final List<Object> pipelineResults = new ArrayList<>();
+    //pipeline中查询的key和条数
+    private final List<String> queriedKeys = new ArrayList<>();
+    private final List<Long> queriedCounts = new ArrayList<>();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        setOps = mock(SetOperations.class);
+        valueOps = mock(ValueOperations.class);
+        followService = mock(IFollowService.class);
+        when(stringRedisTemplate.opsForSet()).thenReturn(setOps);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOps);
+        when(stringRedisTemplate.hasKey(FOLLOWS_LOADED_KEY + USER_ID)).thenReturn(true);
+
+        connection = mock(StringRedisConnection.class);
+        when(connection.zRevRangeByScoreWithScores(anyString(), anyDouble(), anyDouble(), anyLong(), anyLong()))
+                .thenAnswer(call -> {
+                    String key = call.getArgument(0);
+                    long count = call.<Long>getArgument(4);
+                    queriedKeys.add(key);
+                    queriedCounts.add(count);
+                    pipelineResults.add(range(key, call.<Double>getArgument(2), call.<Long>getArgument(3), count));
+                    return null;
+                });
+        when(stringRedisTemplate.executePipelined(any(RedisCallback.class))).thenAnswer(invocation -> {
+            pipelineResults.clear();
+            RedisCallback<?> callback = invocation.getArgument(0);
+            callback.doInRedis(connection);
+            return new ArrayList<>(pipelineResults);
+        });
+
+        feedTaskService = mock(IFeedTaskService.class);
+        executor = mock(ThreadPoolExecutor.class);
+        feedService = new FeedServiceImpl();
+        ReflectionTestUtils.setField(feedService, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(feedService, "followService", followService);
+        ReflectionTestUtils.setField(feedService, "feedTaskService", feedTaskService);
+        ReflectionTestUtils.setField(feedService, "executor", executor);
+        ReflectionTestUtils.setField(feedService, "chunkSize", 2);
+        ReflectionTestUtils.setField(feedService, "inboxMaxSize", 1000);
+        ReflectionTestUtils.setField(feedService, "lockTtlSeconds", 60L);
+        ReflectionTestUtils.setField(feedService, "bigAuthorThreshold", 5000L);
+        ReflectionTestUtils.setField(feedService, "taskRelayMillis", 5000L);
+    }
+
+    @Test
+    void mergesInboxAndBigAuthorOutboxes() {
+        bigAuthors("9");
+        zadd(FEED_KEY + USER_ID, "1", 100, "2", 100, "3", 90, "10", 80, "6", 70, "7", 60);
+        //作者成为大V之前的笔记已推送到收件箱，发件箱中也有
+        zadd(FEED_OUTBOX_KEY + 9, "4", 100, "3", 90, "9", 80, "8", 60);
+
+        //同一时间戳按id的字符串倒序，与ZREVRANGEBYSCORE一致
+        assertEquals(Arrays.asList(4L, 2L, 1L, 3L, 9L, 10L, 6L, 8L, 7L), scrollAll());
+    }
+
+    @Test
+    void offsetSkipsItemsWithTheSameTimestampAcrossPages() {
+        bigAuthors("9", "11");
+        zadd(FEED_KEY + USER_ID, "1", 50, "2", 50, "3", 50);
+        zadd(FEED_OUTBOX_KEY + 9, "4", 50, "5", 50);
+        zadd(FEED_OUTBOX_KEY + 11, "6", 50, "7", 40);
+
+        ScrollResult first = feedService.queryFeed(USER_ID, 1000L, 0);
+        assertEquals(Arrays.asList(6L, 5L), first.getList());
+        assertEquals(Long.valueOf(50), first.getMinTime());
+        assertEquals(Integer.valueOf(2), first.getOffset());
+
+        //本页最小时间戳与上一页相同，offset累加
+        ScrollResult second = feedService.queryFeed(USER_ID, 50L, 2);
+        assertEquals(Arrays.asList(4L, 3L), second.getList());
+        assertEquals(Long.valueOf(50), second.getMinTime());
+        assertEquals(Integer.valueOf(4), second.getOffset());
+
+        assertEquals(Arrays.asList(6L, 5L, 4L, 3L, 2L, 1L, 7L), scrollAll());
+    }
+
+    @Test
+    void readsOnlyOffsetPlusPageFromEachSource() {
+        bigAuthors("9");
+        zadd(FEED_KEY + USER_ID, "1", 100, "2", 90, "3", 80, "4", 70);
+        zadd(FEED_OUTBOX_KEY + 9, "5", 95, "6", 85);
+
+        feedService.queryFeed(USER_ID, 100L, 1);
+
+        assertEquals(Arrays.asList(FEED_KEY + USER_ID, FEED_OUTBOX_KEY + 9), queriedKeys);
+        assertEquals(Arrays.asList(3L, 3L), queriedCounts);
+        verify(stringRedisTemplate, times(1)).executePipelined(any(RedisCallback.class));
+    }
+
+    @Test
+    void inboxOnlyWithoutBigAuthors() {
+        bigAuthors();
+        zadd(FEED_KEY + USER_ID, "1", 100, "2", 90, "3", 80);
+
+        assertEquals(Arrays.asList(1L, 2L, 3L), scrollAll());
+        assertTrue(queriedKeys.stream().allMatch((FEED_KEY + USER_ID)::equals));
+    }
+
+    @Test
+    void emptyFeed() {
+        bigAuthors();
+
+        ScrollResult result = feedService.queryFeed(USER_ID, 1000L, 0);
+
+        assertTrue(result.getList().isEmpty());
+        assertEquals(Long.valueOf(0), result.getMinTime());
+        assertEquals(Integer.valueOf(0), result.getOffset());
+    }
+
+    @Test
+    void loadsFollowsFromDbWhenMarkerIsMissing() {
+        //关注时写入的集合已存在，但没有加载过数据库中更早的关注
+        when(stringRedisTemplate.hasKey("follows:" + USER_ID)).thenReturn(true);
+        when(stringRedisTemplate.hasKey(FOLLOWS_LOADED_KEY + USER_ID)).thenReturn(false);
+        follows(new Follow().setFollowUserId(9L));
+        bigAuthors("9");
+        zadd(FEED_OUTBOX_KEY + 9, "4", 100);
+
+        ScrollResult result = feedService.queryFeed(USER_ID, 1000L, 0);
+
+        verify(setOps).add("follows:" + USER_ID, "9");
+        verify(valueOps).set(FOLLOWS_LOADED_KEY + USER_ID, "1", FOLLOWS_LOADED_TTL, TimeUnit.MINUTES);
+        assertEquals(Collections.singletonList(4L), result.getList());
+    }
+
+    @Test
+    void marksEmptyFollowsAsLoaded() {
+        when(stringRedisTemplate.hasKey(FOLLOWS_LOADED_KEY + USER_ID)).thenReturn(false);
+        follows();
+        bigAuthors();
+
+        feedService.queryFeed(USER_ID, 1000L, 0);
+
+        verify(setOps, never()).add(anyString(), any());
+        verify(valueOps).set(FOLLOWS_LOADED_KEY + USER_ID, "1", FOLLOWS_LOADED_TTL, TimeUnit.MINUTES);
+    }
+
+    @Test
+    void skipsDbWhenFollowsAreLoaded() {
+        bigAuthors();
+
+        feedService.queryFeed(USER_ID, 1000L, 0);
+
+        verify(followService, never()).query();
+    }
+
+    @Test
+    void fanOutPushesFollowersInChunksAndRecordsProgress() {
+        fanOutTask("0", 101L, 102L, 103L, 104L, 105L);
+        when(stringRedisTemplate.execute(eq(RENEW_SCRIPT), anyList(), any())).thenReturn(1L);
+
+        feedService.fanOut("7");
+
+        //按主键游标分页，每批2个粉丝
+        assertEquals(Arrays.asList(0L, 2L, 4L, 5L), followCursors);
+        InOrder inOrder = inOrder(connection);
+        inOrder.verify(connection).zAdd(FEED_KEY + 101, 1000.0, "7");
+        inOrder.verify(connection).zAdd(FEED_KEY + 102, 1000.0, "7");
+        inOrder.verify(connection).hSet(FEED_FANOUT_KEY + 7, "lastFollowId", "2");
+        inOrder.verify(connection).hSet(FEED_FANOUT_KEY + 7, "lastFollowId", "4");
+        inOrder.verify(connection).zAdd(FEED_KEY + 105, 1000.0, "7");
+        inOrder.verify(connection).hSet(FEED_FANOUT_KEY + 7, "lastFollowId", "5");
+        //推送完成后删除任务
+        inOrder.verify(connection).del(FEED_FANOUT_KEY + 7);
+        inOrder.verify(connection).sRem(FEED_FANOUT_PENDING_KEY, "7");
+    }
+
+    @Test
+    void fanOutResumesFromLastFollowId() {
+        fanOutTask("3", 101L, 102L, 103L, 104L, 105L);
+        when(stringRedisTemplate.execute(eq(RENEW_SCRIPT), anyList(), any())).thenReturn(1L);
+
+        feedService.fanOut("7");
+
+        assertEquals(Arrays.asList(3L, 5L), followCursors);
+        verify(connection, never()).zAdd(eq(FEED_KEY + 101), anyDouble(), anyString());
+        verify(connection, never()).zAdd(eq(FEED_KEY + 103), anyDouble(), anyString());
+        verify(connection).zAdd(FEED_KEY + 104, 1000.0, "7");
+        verify(connection).zAdd(FEED_KEY + 105, 1000.0, "7");
+        verify(connection).del(FEED_FANOUT_KEY + 7);
+    }
+
+    @Test
+    void fanOutStopsWhenLockIsLost() {
+        fanOutTask("0", 101L, 102L, 103L, 104L);
+        //第二批之前续期失败，锁已被其他节点获取
+        when(stringRedisTemplate.execute(eq(RENEW_SCRIPT), anyList(), any())).thenReturn(1L, 0L);
+
+        feedService.fanOut("7");
+
+        assertEquals(Collections.singletonList(0L), followCursors);
+        verify(connection).hSet(FEED_FANOUT_KEY + 7, "lastFollowId", "2");
+        verify(connection, never()).zAdd(eq(FEED_KEY + 103), anyDouble(), anyString());
+        //任务保留给持有锁的节点继续
+        verify(connection, never()).del(anyString());
+        verify(connection, never()).sRem(anyString(), any());
+    }
+
+    @Test
+    void fanOutSkipsTaskLockedByAnotherNode() {
+        fanOutTask("0", 101L);
+        when(valueOps.setIfAbsent(anyString(), anyString(), anyLong(), any())).thenReturn(false);
+
+        feedService.fanOut("7");
+
+        verify(followService, never()).query();
+        verify(stringRedisTemplate, never()).execute(eq(RENEW_SCRIPT), anyList(), any());
+    }
+
+    @Test
+    void publishRegistersTaskAndDeletesRecord() {
+        when(feedTaskService.save(any())).thenAnswer(invocation -> {
+            invocation.<FeedTask>getArgument(0).setId(11L);
+            return true;
+        });
+        follows();
+
+        feedService.publish(3L, 7L);
+
+        //不覆盖已有的推送进度
+        verify(connection).hSetNX(FEED_FANOUT_KEY + 7, "authorId", "3");
+        verify(connection).hSetNX(FEED_FANOUT_KEY + 7, "lastFollowId", "0");
+        verify(connection).sAdd(FEED_FANOUT_PENDING_KEY, "7");
+        verify(executor).execute(any());
+        verify(feedTaskService).removeById(11L);
+    }
+
+    @Test
+    void publishKeepsRecordWhenRedisFails() {
+        follows();
+        doThrow(new IllegalStateException("redis不可用")).when(stringRedisTemplate).executePipelined(any(RedisCallback.class));
+
+        feedService.publish(3L, 7L);
+
+        verify(feedTaskService).save(any());
+        verify(feedTaskService, never()).removeById(any(Long.class));
+        verify(executor, never()).execute(any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void relayDispatchesOldRecordsWithTheirCreateTime() {
+        LocalDateTime createTime = LocalDateTime.of(2022, 1, 13, 17, 32, 19);
+        FeedTask task = new FeedTask().setId(11L).setBlogId(7L).setAuthorId(3L).setCreateTime(createTime);
+        QueryChainWrapper<FeedTask> query = mock(QueryChainWrapper.class, RETURNS_SELF);
+        when(feedTaskService.query()).thenReturn(query);
+        when(query.list()).thenReturn(Collections.singletonList(task));
+        follows();
+
+        feedService.relayTasks();
+
+        long time = createTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        verify(connection).hSetNX(FEED_FANOUT_KEY + 7, "time", String.valueOf(time));
+        verify(feedTaskService).removeById(11L);
+    }
+
+    /**
+     * 按返回的minTime和offset一直向下滚动，收集所有笔记id
+     */
+    private List<Long> scrollAll() {
+        List<Long> ids = new ArrayList<>();
+        long max = 1000;
+        int offset = 0;
+        for (int i = 0; i < 100; i++) {
+            ScrollResult result = feedService.queryFeed(USER_ID, max, offset);
+            if (result.getList().isEmpty()) {
+                return ids;
+            }
+            result.getList().forEach(id -> ids.add((Long) id));
+            max = result.getMinTime();
+            offset = result.getOffset();
+        }
+        fail("滚动没有结束");
+        return ids;
+    }
+
+    /**
+     * redis中的推送任务和按主键游标分页的粉丝查询，粉丝关注记录的主键从1开始
+     */
+    @SuppressWarnings("unchecked")
+    private void fanOutTask(String lastFollowId, Long... followerIds) {
+        for (Long followerId : followerIds) {
+            followers.add(new Follow().setId((long) followers.size() + 1).setUserId(followerId).setFollowUserId(3L));
+        }
+        when(valueOps.setIfAbsent(anyString(), anyString(), anyLong(), any())).thenReturn(true);
+        HashOperations<String, Object, Object> hashOps = mock(HashOperations.class);
+        when(stringRedisTemplate.opsForHash()).thenReturn(hashOps);
+        Map<Object, Object> task = new HashMap<>();
+        task.put("authorId", "3");
+        task.put("time", "1000");
+        task.put("lastFollowId", lastFollowId);
+        when(hashOps.entries(FEED_FANOUT_KEY + 7)).thenReturn(task);
+        when(followService.query()).thenAnswer(invocation -> {
+            Map<String, Object[]> calls = new HashMap<>();
+            return mock(QueryChainWrapper.class, call -> {
+                String name = call.getMethod().getName();
+                if ("list".equals(name)) {
+                    long lastId = ((Number) calls.get("gt")[1]).longValue();
+                    int limit = Integer.parseInt(calls.get("last")[0].toString().replace("limit ", ""));
+                    followCursors.add(lastId);
+                    return followers.stream().filter(f -> f.getId() > lastId).limit(limit).collect(Collectors.toList());
+                }
+                calls.put(name, call.getArguments());
+                return call.getMethod().getReturnType().isInstance(call.getMock())
+                        ? call.getMock() : RETURNS_DEFAULTS.answer(call);
+            });
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private void follows(Follow... follows) {
+        QueryChainWrapper<Follow> query = mock(QueryChainWrapper.class, RETURNS_SELF);
+        when(followService.query()).thenReturn(query);
+        when(query.list()).thenReturn(Arrays.asList(follows));
+    }
+
+    private void bigAuthors(String... authorIds) {
+        when(setOps.intersect("follows:" + USER_ID, FEED_BIG_AUTHORS_KEY))
+                .thenReturn(new LinkedHashSet<>(Arrays.asList(authorIds)));
+    }
+
+    private void zadd(String key, Object... memberScores) {
+        Map<String, Double> zset = zsets.computeIfAbsent(key, k -> new HashMap<>());
+        for (int i = 0; i < memberScores.length; i += 2) {
+            zset.put((String) memberScores[i], ((Number) memberScores[i + 1]).doubleValue());
+        }
+    }
+
+    /**
+     * ZREVRANGEBYSCORE key max 0 WITHSCORES LIMIT offset count
+     */
+    private LinkedHashSet<ZSetOperations.TypedTuple<String>> range(String key, double max, long offset, long count) {
+        return zsets.getOrDefault(key, Collections.emptyMap()).entrySet().stream()
+                .filter(e -> e.getValue() >= 0 && e.getValue() <= max)
+                .sorted(Comparator.comparing((Map.Entry<String, Double> e) -> e.getValue())
+                        .thenComparing(Map.Entry::getKey).reversed())
+                .skip(offset)
+                .limit(count)
+                .<ZSetOperations.TypedTuple<String>>map(e -> new DefaultTypedTuple<>(e.getKey(), e.getValue()))
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+}
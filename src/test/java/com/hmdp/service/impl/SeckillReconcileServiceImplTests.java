@@ -0,0 +1,395 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.extension.conditions.query.QueryChainWrapper;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillReconcileResult;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.SetOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+/**
+ * 秒杀对账：redis和数据库用内存数据模拟
+ * SSCAN -> IN查询、按主键分页 -> SISMEMBER、修复以及单张券失败的隔离
+ */
+class SeckillReconcileServiceImplTests {
+    //数据库：券id -> 库存、分片数，订单
+    private final Map<Long, Integer> dbStocks = new TreeMap<>();
+    private final Map<Long, Integer> dbShards = new HashMap<>();
+    private final List<VoucherOrder> dbOrders = new ArrayList<>();
+    //redis：字符串和集合，SSCAN默认返回集合成员，可以指定带重复成员的返回
+    private final Map<String, String> values = new HashMap<>();
+    private final Map<String, Set<String>> sets = new HashMap<>();
+    private final Map<String, List<String>> scanResults = new HashMap<>();
+    //每次IN查询的用户id
+    private final List<List<Long>> inQueries = new ArrayList<>();
+    private final List<Object> pipelineResults = new ArrayList<>();
+    private final AtomicLong nextOrderId = new AtomicLong(1000);
+
+    private SeckillReconcileServiceImpl service;
+    private IVoucherOrderService voucherOrderService;
+    private SeckillSoldOutRegistry soldOutRegistry;
+    private ValueOperations<String, String> valueOps;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        ISeckillVoucherService seckillVoucherService = mock(ISeckillVoucherService.class);
+        when(seckillVoucherService.query()).thenAnswer(invocation -> query(this::queryVouchers));
+        when(seckillVoucherService.getById(any())).thenAnswer(invocation -> voucher(invocation.getArgument(0)));
+
+        voucherOrderService = mock(IVoucherOrderService.class);
+        when(voucherOrderService.query()).thenAnswer(invocation -> query(this::queryOrders));
+        when(voucherOrderService.createVoucherOrders(anyList())).thenAnswer(invocation -> {
+            List<VoucherOrder> orders = invocation.getArgument(0);
+            for (VoucherOrder order : orders) {
+                dbOrders.add(order);
+                dbStocks.merge(order.getVoucherId(), -1, Integer::sum);
+            }
+            return Collections.emptyList();
+        });
+
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        valueOps = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(valueOps);
+        when(valueOps.multiGet(anyList())).thenAnswer(invocation -> ((List<String>) invocation.getArgument(0)).stream()
+                .map(values::get).collect(Collectors.toList()));
+        when(valueOps.increment(anyString(), anyLong())).thenAnswer(invocation -> addTo(invocation.getArgument(0), invocation.<Long>getArgument(1)));
+        when(valueOps.decrement(anyString(), anyLong())).thenAnswer(invocation -> addTo(invocation.getArgument(0), -invocation.<Long>getArgument(1)));
+        SetOperations<String, String> setOps = mock(SetOperations.class);
+        when(stringRedisTemplate.opsForSet()).thenReturn(setOps);
+        when(setOps.scan(anyString(), any())).thenAnswer(invocation -> cursor(scanResults.getOrDefault(invocation.getArgument(0),
+                new ArrayList<>(set(invocation.getArgument(0))))));
+        StringRedisConnection connection = mock(StringRedisConnection.class, invocation -> {
+            Object[] args = invocation.getArguments();
+            switch (invocation.getMethod().getName()) {
+                case "sCard":
+                    pipelineResults.add((long) set((String) args[0]).size());
+                    break;
+                case "sIsMember":
+                    pipelineResults.add(set((String) args[0]).contains((String) args[1]));
+                    break;
+                case "sAdd":
+                    long added = 0;
+                    for (int i = 1; i < args.length; i++) {
+                        added += set((String) args[0]).add((String) args[i]) ? 1 : 0;
+                    }
+                    pipelineResults.add(added);
+                    break;
+                default:
+                    break;
+            }
+            return null;
+        });
+        when(stringRedisTemplate.executePipelined(any(RedisCallback.class))).thenAnswer(invocation -> {
+            pipelineResults.clear();
+            RedisCallback<?> callback = invocation.getArgument(0);
+            callback.doInRedis(connection);
+            return new ArrayList<>(pipelineResults);
+        });
+
+        RedisIdWorker redisIdWorker = mock(RedisIdWorker.class);
+        when(redisIdWorker.nextId("order")).thenAnswer(invocation -> nextOrderId.incrementAndGet());
+        soldOutRegistry = mock(SeckillSoldOutRegistry.class);
+
+        SeckillReconcileServiceImpl target = new SeckillReconcileServiceImpl();
+        ReflectionTestUtils.setField(target, "seckillVoucherService", seckillVoucherService);
+        ReflectionTestUtils.setField(target, "voucherOrderService", voucherOrderService);
+        ReflectionTestUtils.setField(target, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(target, "redisIdWorker", redisIdWorker);
+        ReflectionTestUtils.setField(target, "soldOutRegistry", soldOutRegistry);
+        service = spy(target);
+        doReturn(true).when(service).isQueueDrained();
+    }
+
+    @Test
+    void consistentVoucherHasNoDrift() {
+        addVoucher(1L, 8, 1);
+        setStock(1L, 1, 0, 8);
+        addOrders(1L, 1, 1L, 2L);
+
+        Result result = service.reconcile(false);
+
+        assertTrue(result.getSuccess());
+        assertEquals(Long.valueOf(1), result.getTotal());
+        assertTrue(((List<?>) result.getData()).isEmpty());
+    }
+
+    @Test
+    void reportFindsOrdersMissingOnEitherSide() {
+        addVoucher(1L, 7, 1);
+        setStock(1L, 1, 0, 7);
+        //redis有用户3而数据库没有，数据库有用户4而redis没有
+        set(SeckillKeys.orderKey(1L, 1, 0)).addAll(Arrays.asList("1", "2", "3"));
+        dbOrder(1L, 1L);
+        dbOrder(1L, 2L);
+        dbOrder(1L, 4L);
+        //SSCAN重复返回同一个成员
+        scanResults.put(SeckillKeys.orderKey(1L, 1, 0), Arrays.asList("1", "2", "1", "3"));
+
+        SeckillReconcileResult drift = onlyDrift(service.reconcile(false));
+
+        assertEquals(Long.valueOf(3), drift.getRedisOrders());
+        assertEquals(Long.valueOf(3), drift.getDbOrders());
+        assertEquals(Long.valueOf(1), drift.getMissingInDb());
+        assertEquals(Long.valueOf(1), drift.getMissingInRedis());
+        assertEquals(Long.valueOf(0), drift.getStockDiff());
+        assertEquals(Arrays.asList(3L, 4L), drift.getSampleUserIds());
+        assertFalse(drift.getRepaired());
+        //批内去重后一次IN查询
+        assertEquals(Collections.singletonList(Arrays.asList(1L, 2L, 3L)), inQueries);
+        //只报告不修复
+        verify(voucherOrderService, never()).createVoucherOrders(anyList());
+        assertFalse(set(SeckillKeys.orderKey(1L, 1, 0)).contains("4"));
+    }
+
+    @Test
+    void repairRecreatesOrdersAndCorrectsStock() {
+        addVoucher(1L, 6, 1);
+        setStock(1L, 1, 0, 4);
+        set(SeckillKeys.orderKey(1L, 1, 0)).addAll(Arrays.asList("1", "2", "3"));
+        dbOrder(1L, 1L);
+        dbOrder(1L, 2L);
+        dbOrder(1L, 4L);
+
+        SeckillReconcileResult drift = onlyDrift(service.reconcile(true));
+
+        //补建用户3的订单，数据库库存随之扣减
+        assertTrue(dbOrders.stream().anyMatch(order -> order.getUserId() == 3L && order.getVoucherId() == 1L));
+        assertEquals(Integer.valueOf(5), dbStocks.get(1L));
+        //补写用户4的下单记录
+        assertTrue(set(SeckillKeys.orderKey(1L, 1, 0)).contains("4"));
+        //redis库存(4)+订单(4)比数据库库存(5)+订单(4)少1，补回redis
+        assertEquals(Long.valueOf(-1), drift.getStockDiff());
+        assertEquals("5", values.get(SeckillKeys.stockKey(1L, 1, 0)));
+        assertEquals(Long.valueOf(5), drift.getRedisStock());
+        assertEquals(Long.valueOf(5), drift.getDbStock());
+        assertTrue(drift.getRepaired());
+        verify(soldOutRegistry).reset(1L);
+    }
+
+    @Test
+    void repairTakesExtraStockFromShards() {
+        addVoucher(1L, 2, 2);
+        setStock(1L, 2, 0, 3);
+        setStock(1L, 2, 1, 1);
+        addOrders(1L, 2, 1L, 2L);
+
+        SeckillReconcileResult drift = onlyDrift(service.reconcile(true));
+
+        //各分片的下单数相加
+        assertEquals(Long.valueOf(2), drift.getRedisOrders());
+        assertEquals(Long.valueOf(2), drift.getStockDiff());
+        assertEquals("1", values.get(SeckillKeys.stockKey(1L, 2, 0)));
+        assertEquals("1", values.get(SeckillKeys.stockKey(1L, 2, 1)));
+        assertEquals(Long.valueOf(2), drift.getRedisStock());
+        verify(soldOutRegistry, never()).reset(any());
+    }
+
+    @Test
+    void failedVoucherDoesNotStopOthers() {
+        addVoucher(1L, 5, 1);
+        addVoucher(2L, 5, 1);
+        setStock(1L, 1, 0, 5);
+        setStock(2L, 1, 0, 4);
+        set(SeckillKeys.orderKey(2L, 1, 0)).add("9");
+        when(valueOps.multiGet(Collections.singletonList(SeckillKeys.stockKey(1L, 1, 0))))
+                .thenThrow(new IllegalStateException("redis超时"));
+
+        Result result = service.reconcile(false);
+
+        assertEquals(Long.valueOf(2), result.getTotal());
+        List<?> drifts = (List<?>) result.getData();
+        assertEquals(2, drifts.size());
+        SeckillReconcileResult failed = (SeckillReconcileResult) drifts.get(0);
+        assertEquals(Long.valueOf(1), failed.getVoucherId());
+        assertEquals("redis超时", failed.getError());
+        SeckillReconcileResult second = (SeckillReconcileResult) drifts.get(1);
+        assertEquals(Long.valueOf(2), second.getVoucherId());
+        assertNull(second.getError());
+        assertEquals(Long.valueOf(1), second.getMissingInDb());
+    }
+
+    @Test
+    void repairRefusedWhileQueueIsNotDrained() {
+        doReturn(false).when(service).isQueueDrained();
+
+        Result result = service.reconcile(true);
+
+        assertFalse(result.getSuccess());
+        verify(voucherOrderService, never()).query();
+    }
+
+    @Test
+    void voucherReportedWithoutRepairWhenQueueFillsDuringReconcile() {
+        doReturn(true).doReturn(false).when(service).isQueueDrained();
+        addVoucher(1L, 5, 1);
+        setStock(1L, 1, 0, 4);
+        set(SeckillKeys.orderKey(1L, 1, 0)).add("3");
+
+        SeckillReconcileResult drift = onlyDrift(service.reconcile(true));
+
+        assertEquals("订单队列尚未消费完，跳过修复", drift.getError());
+        assertEquals(Long.valueOf(1), drift.getMissingInDb());
+        assertFalse(drift.getRepaired());
+        verify(voucherOrderService, never()).createVoucherOrders(anyList());
+    }
+
+    @Test
+    void noDriftWhenBothSidesAddUp() {
+        //初始库存100，redis已卖30，订单全部落库
+        assertEquals(0, SeckillReconcileServiceImpl.stockDiff(70, 30, 70, 30));
+    }
+
+    @Test
+    void noDriftWhileOrdersAreStillQueued() {
+        //redis已扣库存的订单还没落库，两侧的和仍然相等
+        assertEquals(0, SeckillReconcileServiceImpl.stockDiff(70, 30, 90, 10));
+    }
+
+    @Test
+    void positiveWhenRedisHasExtraStock() {
+        //redis库存被多加了5，会超卖
+        assertEquals(5, SeckillReconcileServiceImpl.stockDiff(75, 30, 70, 30));
+    }
+
+    @Test
+    void negativeWhenRedisLostStock() {
+        //redis扣了库存但订单集合没有记录，会少卖
+        assertEquals(-3, SeckillReconcileServiceImpl.stockDiff(67, 30, 70, 30));
+    }
+
+    private static SeckillReconcileResult onlyDrift(Result result) {
+        assertTrue(result.getSuccess());
+        List<?> drifts = (List<?>) result.getData();
+        assertEquals(1, drifts.size());
+        return (SeckillReconcileResult) drifts.get(0);
+    }
+
+    private void addVoucher(Long voucherId, int stock, int shards) {
+        dbStocks.put(voucherId, stock);
+        dbShards.put(voucherId, shards);
+    }
+
+    private SeckillVoucher voucher(Long voucherId) {
+        return new SeckillVoucher()
+                .setVoucherId(voucherId)
+                .setStock(dbStocks.get(voucherId))
+                .setStockShards(dbShards.get(voucherId));
+    }
+
+    private void setStock(Long voucherId, int shards, int shard, long stock) {
+        values.put(SeckillKeys.stockKey(voucherId, shards, shard), String.valueOf(stock));
+    }
+
+    /**
+     * 两侧都有的订单
+     */
+    private void addOrders(Long voucherId, int shards, Long... userIds) {
+        for (Long userId : userIds) {
+            set(SeckillKeys.orderKey(voucherId, shards, SeckillKeys.homeShard(userId, shards))).add(userId.toString());
+            dbOrder(voucherId, userId);
+        }
+    }
+
+    private void dbOrder(Long voucherId, Long userId) {
+        dbOrders.add(new VoucherOrder().setId(nextOrderId.incrementAndGet()).setVoucherId(voucherId).setUserId(userId));
+    }
+
+    private Set<String> set(String key) {
+        return sets.computeIfAbsent(key, k -> new LinkedHashSet<>());
+    }
+
+    private Long addTo(String key, long delta) {
+        long value = Long.parseLong(values.getOrDefault(key, "0")) + delta;
+        values.put(key, String.valueOf(value));
+        return value;
+    }
+
+    private List<SeckillVoucher> queryVouchers(Map<String, Object[]> calls) {
+        long lastId = ((Number) calls.get("gt")[1]).longValue();
+        return dbStocks.keySet().stream()
+                .filter(id -> id > lastId)
+                .map(this::voucher)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 对账中的两种订单查询：按用户IN查询，或按主键游标分页
+     */
+    private List<VoucherOrder> queryOrders(Map<String, Object[]> calls) {
+        Object voucherId = calls.get("eq")[1];
+        if (calls.containsKey("in")) {
+            Collection<?> userIds = (Collection<?>) calls.get("in")[1];
+            inQueries.add(userIds.stream().map(id -> (Long) id).collect(Collectors.toList()));
+            return dbOrders.stream()
+                    .filter(order -> order.getVoucherId().equals(voucherId) && userIds.contains(order.getUserId()))
+                    .collect(Collectors.toList());
+        }
+        long lastId = ((Number) calls.get("gt")[1]).longValue();
+        int limit = Integer.parseInt(calls.get("last")[0].toString().replace("limit ", ""));
+        return dbOrders.stream()
+                .filter(order -> order.getVoucherId().equals(voucherId) && order.getId() > lastId)
+                .sorted((a, b) -> Long.compare(a.getId(), b.getId()))
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 记录链式调用的条件，list()时交给executor按条件返回结果
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> QueryChainWrapper<T> query(Function<Map<String, Object[]>, List<T>> executor) {
+        Map<String, Object[]> calls = new HashMap<>();
+        return mock(QueryChainWrapper.class, invocation -> {
+            String name = invocation.getMethod().getName();
+            if ("list".equals(name)) {
+                return executor.apply(calls);
+            }
+            calls.put(name, invocation.getArguments());
+            return invocation.getMethod().getReturnType().isInstance(invocation.getMock())
+                    ? invocation.getMock() : RETURNS_DEFAULTS.answer(invocation);
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Cursor<String> cursor(List<String> members) {
+        Iterator<String> it = members.iterator();
+        Cursor<String> cursor = mock(Cursor.class);
+        when(cursor.hasNext()).thenAnswer(invocation -> it.hasNext());
+        when(cursor.next()).thenAnswer(invocation -> it.next());
+        return cursor;
+    }
+}
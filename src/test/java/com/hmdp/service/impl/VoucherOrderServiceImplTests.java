@@ -0,0 +1,243 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.extension.conditions.update.UpdateChainWrapper;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillWindowCache;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisScripts.SECKILL_BORROW_SCRIPT;
+import static com.hmdp.utils.RedisScripts.SECKILL_SCRIPT;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.*;
+
+/**
+ * 批量保存订单与整批失败后逐条重试，以及下单时分片库存不足的借用
+ */
+class VoucherOrderServiceImplTests {
+    private static final Long VOUCHER_ID = 10L;
+    private static final Long USER_ID = 101L;
+
+    private VoucherOrderServiceImpl service;
+    private VoucherOrderMapper mapper;
+    private IVoucherOrderService proxy;
+    private UpdateChainWrapper<SeckillVoucher> stockUpdate;
+    private SeckillSoldOutRegistry soldOutRegistry;
+    private SeckillWindowCache windowCache;
+    private StringRedisTemplate stringRedisTemplate;
+    //模拟redis中各分片的库存
+    private final Map<String, Long> stocks = new HashMap<>();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        mapper = mock(VoucherOrderMapper.class);
+        proxy = mock(IVoucherOrderService.class);
+        ISeckillVoucherService seckillVoucherService = mock(ISeckillVoucherService.class);
+        stockUpdate = mock(UpdateChainWrapper.class, RETURNS_SELF);
+        when(seckillVoucherService.update()).thenReturn(stockUpdate);
+        service = new VoucherOrderServiceImpl();
+        ReflectionTestUtils.setField(service, "baseMapper", mapper);
+        ReflectionTestUtils.setField(service, "seckillVoucherService", seckillVoucherService);
+        ReflectionTestUtils.setField(service, "proxy", proxy);
+        mockSeckillRedis();
+    }
+
+    @AfterEach
+    void tearDown() {
+        UserHolder.removeUser();
+    }
+
+    @Test
+    void createVoucherOrdersDeductsStockOncePerVoucher() {
+        when(mapper.insertBatchIgnore(anyList())).thenAnswer(invocation -> ((List<?>) invocation.getArgument(0)).size());
+        when(stockUpdate.update()).thenReturn(true);
+
+        List<Long> duplicates = service.createVoucherOrders(Arrays.asList(order(1, 10, 100), order(2, 10, 101), order(3, 20, 100)));
+
+        assertTrue(duplicates.isEmpty());
+        verify(mapper, times(2)).insertBatchIgnore(anyList());
+        verify(stockUpdate).setSql("stock=stock-2");
+        verify(stockUpdate).setSql("stock=stock-1");
+    }
+
+    @Test
+    void createVoucherOrdersReturnsSkippedDuplicates() {
+        when(mapper.insertBatchIgnore(anyList())).thenReturn(1);
+        when(mapper.selectList(any())).thenReturn(Collections.singletonList(new VoucherOrder().setId(1L)));
+        when(stockUpdate.update()).thenReturn(true);
+
+        List<Long> duplicates = service.createVoucherOrders(Arrays.asList(order(1, 10, 100), order(2, 10, 101)));
+
+        assertEquals(Collections.singletonList(2L), duplicates);
+        verify(stockUpdate).setSql("stock=stock-1");
+    }
+
+    @Test
+    void createVoucherOrdersSkipsStockWhenAllDuplicated() {
+        when(mapper.insertBatchIgnore(anyList())).thenReturn(0);
+        when(mapper.selectList(any())).thenReturn(Collections.emptyList());
+
+        List<Long> duplicates = service.createVoucherOrders(Arrays.asList(order(1, 10, 100), order(2, 10, 101)));
+
+        assertEquals(Arrays.asList(1L, 2L), duplicates);
+        verify(stockUpdate, never()).update();
+    }
+
+    @Test
+    void createVoucherOrdersFailsWhenStockInsufficient() {
+        when(mapper.insertBatchIgnore(anyList())).thenReturn(2);
+        when(stockUpdate.update()).thenReturn(false);
+
+        assertThrows(IllegalStateException.class,
+                () -> service.createVoucherOrders(Arrays.asList(order(1, 10, 100), order(2, 10, 101))));
+    }
+
+    @Test
+    void persistOrdersUsesOneBatchWhenItSucceeds() {
+        List<VoucherOrder> orders = Arrays.asList(order(1, 10, 100), order(2, 10, 101));
+        when(proxy.createVoucherOrders(orders)).thenReturn(Collections.singletonList(2L));
+        Map<Integer, Exception> failures = new HashMap<>();
+
+        List<String> statuses = service.persistOrders(orders, failures);
+
+        assertEquals(Arrays.asList("persisted", "duplicate"), statuses);
+        assertTrue(failures.isEmpty());
+        verify(proxy, never()).createVoucherOrder(any());
+    }
+
+    @Test
+    void persistOrdersFallsBackToOneByOne() {
+        VoucherOrder ok = order(1, 10, 100);
+        VoucherOrder broken = order(2, 10, 101);
+        VoucherOrder duplicate = order(3, 10, 102);
+        List<VoucherOrder> orders = Arrays.asList(ok, broken, duplicate);
+        when(proxy.createVoucherOrders(orders)).thenThrow(new IllegalStateException("库存不足"));
+        when(proxy.createVoucherOrder(ok)).thenReturn(true);
+        when(proxy.createVoucherOrder(broken)).thenThrow(new IllegalStateException("库存不足"));
+        when(proxy.createVoucherOrder(duplicate)).thenReturn(false);
+        Map<Integer, Exception> failures = new HashMap<>();
+
+        List<String> statuses = service.persistOrders(orders, failures);
+
+        assertEquals(Arrays.asList("persisted", null, "duplicate"), statuses);
+        assertEquals(Collections.singleton(1), failures.keySet());
+        assertTrue(failures.get(1) instanceof IllegalStateException);
+    }
+
+    @Test
+    void seckillBorrowsFromNeighbourShard() {
+        int home = SeckillKeys.homeShard(USER_ID, 4);
+        stocks.put(stockKey(4, home), 0L);
+        stocks.put(stockKey(4, (home + 1) % 4), 0L);
+        stocks.put(stockKey(4, (home + 2) % 4), 3L);
+
+        Result result = service.seckillVoucher(VOUCHER_ID);
+
+        assertTrue(result.getSuccess());
+        //借到3个，下单用掉1个
+        assertEquals(Long.valueOf(2), stocks.get(stockKey(4, home)));
+        assertEquals(Long.valueOf(0), stocks.get(stockKey(4, (home + 2) % 4)));
+        verify(soldOutRegistry, never()).markSoldOut(anyLong(), anyLong());
+    }
+
+    @Test
+    void seckillMarksSoldOutOnlyWhenEveryShardIsEmpty() {
+        for (int shard = 0; shard < 4; shard++) {
+            stocks.put(stockKey(4, shard), 0L);
+        }
+
+        Result result = service.seckillVoucher(VOUCHER_ID);
+
+        assertFalse(result.getSuccess());
+        assertEquals("库存不足", result.getErrorMsg());
+        verify(soldOutRegistry).markSoldOut(VOUCHER_ID, 7L);
+        verify(stringRedisTemplate, times(3)).execute(eq(SECKILL_BORROW_SCRIPT), anyList(), any());
+    }
+
+    @Test
+    void seckillWithoutShardsDoesNotBorrow() {
+        when(windowCache.get(VOUCHER_ID)).thenReturn(window(1));
+        stocks.put(stockKey(1, 0), 0L);
+
+        Result result = service.seckillVoucher(VOUCHER_ID);
+
+        assertFalse(result.getSuccess());
+        verify(soldOutRegistry).markSoldOut(VOUCHER_ID, 7L);
+        verify(stringRedisTemplate, never()).execute(eq(SECKILL_BORROW_SCRIPT), anyList(), any());
+    }
+
+    /**
+     * 用内存中的库存模拟秒杀脚本和借库存脚本，只关心库存相关的返回值
+     */
+    @SuppressWarnings("unchecked")
+    private void mockSeckillRedis() {
+        soldOutRegistry = mock(SeckillSoldOutRegistry.class);
+        windowCache = mock(SeckillWindowCache.class);
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        RedisIdWorker redisIdWorker = mock(RedisIdWorker.class);
+        when(soldOutRegistry.currentEpoch(VOUCHER_ID)).thenReturn(7L);
+        when(windowCache.get(VOUCHER_ID)).thenReturn(window(4));
+        when(redisIdWorker.nextId("order")).thenReturn(1L);
+        when(stringRedisTemplate.execute(any(RedisScript.class), anyList(), any())).thenAnswer(invocation -> {
+            RedisScript<Long> script = invocation.getArgument(0);
+            List<String> keys = invocation.getArgument(1);
+            String stockKey = keys.get(0);
+            long stock = stocks.getOrDefault(stockKey, 0L);
+            if (script == SECKILL_SCRIPT) {
+                if (stock <= 0) {
+                    return 1L;
+                }
+                stocks.put(stockKey, stock - 1);
+                return 0L;
+            }
+            long borrowed = Math.min(stock, Long.parseLong(invocation.getArgument(2)));
+            stocks.put(stockKey, stock - borrowed);
+            stocks.merge(keys.get(1), borrowed, Long::sum);
+            return borrowed;
+        });
+        ReflectionTestUtils.setField(service, "soldOutRegistry", soldOutRegistry);
+        ReflectionTestUtils.setField(service, "windowCache", windowCache);
+        ReflectionTestUtils.setField(service, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(service, "redisIdWorker", redisIdWorker);
+        ReflectionTestUtils.setField(service, "shardBorrowSize", 10L);
+        UserDTO user = new UserDTO();
+        user.setId(USER_ID);
+        UserHolder.saveUser(user);
+    }
+
+    private static SeckillWindowCache.Window window(int shards) {
+        long now = System.currentTimeMillis();
+        return new SeckillWindowCache.Window(now - 60000, now + 60000, shards);
+    }
+
+    private static String stockKey(int shards, int shard) {
+        return SeckillKeys.stockKey(VOUCHER_ID, shards, shard);
+    }
+
+    private static VoucherOrder order(long id, long voucherId, long userId) {
+        return new VoucherOrder().setId(id).setVoucherId(voucherId).setUserId(userId);
+    }
+}
@@ -0,0 +1,57 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 布隆过滤器没有漏判，误判率接近配置值
+ */
+class BloomFilterTests {
+
+    @Test
+    void noFalseNegatives() {
+        BloomFilter filter = new BloomFilter(10000, 0.01, Long.MAX_VALUE);
+        for (int i = 0; i < 10000; i++) {
+            filter.put("cache:shop:" + i);
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain("cache:shop:" + i));
+        }
+    }
+
+    @Test
+    void falsePositiveRateCloseToConfigured() {
+        int n = 100000;
+        double fpp = 0.01;
+        BloomFilter filter = new BloomFilter(n, fpp, Long.MAX_VALUE);
+        for (int i = 0; i < n; i++) {
+            filter.put(String.valueOf(i));
+        }
+        int probes = 100000;
+        int falsePositives = 0;
+        for (int i = n; i < n + probes; i++) {
+            if (filter.mightContain(String.valueOf(i))) {
+                falsePositives++;
+            }
+        }
+        double rate = (double) falsePositives / probes;
+        assertTrue(rate < fpp * 1.5, "误判率过高: " + rate);
+        assertEquals(fpp, filter.expectedFpp(n), fpp * 0.2);
+    }
+
+    @Test
+    void maxBitsCapsSizeAndRaisesRate() {
+        BloomFilter filter = new BloomFilter(100000, 0.01, 1 << 16);
+        assertEquals(1 << 16, filter.getBitSize());
+        assertTrue(filter.expectedFpp(100000) > 0.01);
+    }
+
+    @Test
+    void emptyFilterContainsNothing() {
+        BloomFilter filter = new BloomFilter(1000, 0.01, Long.MAX_VALUE);
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(filter.mightContain(String.valueOf(i)));
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * 批量查询缓存：一次MGET查询redis，未命中的id一次查询数据库，不存在的id缓存空值
+ * redis用内存中的map模拟
+ */
+class CacheClientTests {
+    private CacheClient cacheClient;
+    private final Map<String, byte[]> redis = new HashMap<>();
+    private final Map<Long, UserDTO> db = new HashMap<>();
+    //每次MGET和数据库查询的id
+    private final List<List<String>> mGets = new ArrayList<>();
+    private final List<List<Long>> dbQueries = new ArrayList<>();
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate stringRedisTemplate = mock(StringRedisTemplate.class);
+        RedisConnection connection = mock(RedisConnection.class);
+        when(connection.mGet(any())).thenAnswer(invocation -> {
+            List<String> keys = Arrays.stream(invocation.getArguments())
+                    .map(key -> new String((byte[]) key, StandardCharsets.UTF_8))
+                    .collect(Collectors.toList());
+            mGets.add(keys);
+            return keys.stream().map(redis::get).collect(Collectors.toList());
+        });
+        when(connection.pSetEx(any(), anyLong(), any())).thenAnswer(invocation -> {
+            redis.put(new String(invocation.<byte[]>getArgument(0), StandardCharsets.UTF_8), invocation.getArgument(2));
+            return true;
+        });
+        when(stringRedisTemplate.execute(any(RedisCallback.class)))
+                .thenAnswer(invocation -> invocation.<RedisCallback<?>>getArgument(0).doInRedis(connection));
+        when(stringRedisTemplate.executePipelined(any(RedisCallback.class))).thenAnswer(invocation -> {
+            invocation.<RedisCallback<?>>getArgument(0).doInRedis(connection);
+            return Collections.emptyList();
+        });
+
+        CacheBloomFilter bloomFilter = mock(CacheBloomFilter.class);
+        when(bloomFilter.mightContain(anyString(), any())).thenReturn(true);
+        CacheCodecs codecs = new CacheCodecs();
+        ReflectionTestUtils.setField(codecs, "codecs", Arrays.asList(new BinaryCacheCodec(), new JsonCacheCodec()));
+        ReflectionTestUtils.setField(codecs, "binaryEnabled", true);
+        ReflectionTestUtils.invokeMethod(codecs, "init");
+
+        cacheClient = new CacheClient(stringRedisTemplate);
+        ReflectionTestUtils.setField(cacheClient, "bloomFilter", bloomFilter);
+        ReflectionTestUtils.setField(cacheClient, "cacheCodecs", codecs);
+        ReflectionTestUtils.setField(cacheClient, "cacheMetrics", mock(CacheMetrics.class));
+        ReflectionTestUtils.setField(cacheClient, "localPrefixes", new String[0]);
+    }
+
+    @Test
+    void returnsResultsInInputOrderWithOneMgetAndOneDbQuery() {
+        db.put(1L, user(1L, "小鱼同学"));
+        db.put(2L, user(2L, "可可今天不吃肉"));
+        cacheClient.set(CACHE_USER_KEY + 1, db.get(1L), 30L, TimeUnit.MINUTES);
+
+        List<UserDTO> users = query(3L, 1L, 2L, 1L);
+
+        assertNull(users.get(0));
+        assertEquals("小鱼同学", users.get(1).getNickName());
+        assertEquals("可可今天不吃肉", users.get(2).getNickName());
+        assertEquals("小鱼同学", users.get(3).getNickName());
+        //重复的id只查询一次
+        assertEquals(Collections.singletonList(Arrays.asList(CACHE_USER_KEY + 3, CACHE_USER_KEY + 1, CACHE_USER_KEY + 2)), mGets);
+        assertEquals(Collections.singletonList(Arrays.asList(3L, 2L)), dbQueries);
+    }
+
+    @Test
+    void cachesMissesAsEmptyValues() {
+        db.put(2L, user(2L, "可可今天不吃肉"));
+
+        query(3L, 2L);
+
+        assertEquals(0, redis.get(CACHE_USER_KEY + 3).length);
+        assertTrue(redis.get(CACHE_USER_KEY + 2).length > 0);
+
+        //再次查询全部命中redis，不存在的id也不再查询数据库
+        List<UserDTO> users = query(2L, 3L);
+
+        assertEquals("可可今天不吃肉", users.get(0).getNickName());
+        assertNull(users.get(1));
+        assertEquals(1, dbQueries.size());
+        assertEquals(2, mGets.size());
+    }
+
+    @Test
+    void emptyIdsSkipRedisAndDb() {
+        assertTrue(query().isEmpty());
+        assertTrue(mGets.isEmpty());
+        assertTrue(dbQueries.isEmpty());
+    }
+
+    private List<UserDTO> query(Long... ids) {
+        return cacheClient.queryBatchWithPassThrough(CACHE_USER_KEY, Arrays.asList(ids), UserDTO.class, missIds -> {
+            dbQueries.add(new ArrayList<>(missIds));
+            Map<Long, UserDTO> found = new HashMap<>();
+            for (Long id : missIds) {
+                if (db.containsKey(id)) {
+                    found.put(id, db.get(id));
+                }
+            }
+            return found;
+        }, 30L, TimeUnit.MINUTES);
+    }
+
+    private static UserDTO user(Long id, String nickName) {
+        UserDTO user = new UserDTO();
+        user.setId(id);
+        user.setNickName(nickName);
+        user.setIcon("/imgs/icons/" + id + ".jpg");
+        return user;
+    }
+}
@@ -0,0 +1,134 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 缓存值新旧两种格式的编解码
+ */
+class CacheCodecsTests {
+    private static final long EXPIRE_AT = 1700000000123L;
+
+    @Test
+    void binaryRoundTrip() {
+        CacheCodecs codecs = codecs(true);
+        Shop shop = shop();
+
+        byte[] raw = codecs.encode(shop, EXPIRE_AT);
+        assertEquals(0, raw[0]);
+        assertEquals(2, raw[2]);
+
+        CachedValue<Shop> value = codecs.decode(raw, Shop.class, true);
+        assertEquals(shop, value.getData());
+        assertEquals(EXPIRE_AT, value.getExpireAt());
+    }
+
+    @Test
+    void unregisteredTypeFallsBackToJsonCodec() {
+        CacheCodecs codecs = codecs(true);
+        Blog blog = new Blog();
+        blog.setId(7L);
+        blog.setTitle("探店");
+
+        byte[] raw = codecs.encode(blog, 0);
+        assertEquals(0, raw[0]);
+        assertEquals(1, raw[2]);
+
+        CachedValue<Blog> value = codecs.decode(raw, Blog.class, false);
+        assertEquals(Long.valueOf(7), value.getData().getId());
+        assertEquals("探店", value.getData().getTitle());
+        assertEquals(0, value.getExpireAt());
+    }
+
+    @Test
+    void legacyRoundTripWhenBinaryDisabled() {
+        CacheCodecs codecs = codecs(false);
+        Shop shop = shop();
+
+        byte[] plain = codecs.encode(shop, 0);
+        assertEquals('{', plain[0]);
+        CachedValue<Shop> value = codecs.decode(plain, Shop.class, false);
+        assertEquals(shop, value.getData());
+        assertEquals(0, value.getExpireAt());
+
+        byte[] wrapped = codecs.encode(shop, EXPIRE_AT);
+        value = codecs.decode(wrapped, Shop.class, true);
+        assertEquals(shop, value.getData());
+        assertEquals(EXPIRE_AT, value.getExpireAt());
+    }
+
+    @Test
+    void decodesValuesWrittenBeforeTheCodecLayer() {
+        //升级前CacheClient直接写入的json
+        CacheCodecs codecs = codecs(true);
+        byte[] plain = "{\"id\":1,\"name\":\"103茶餐厅\",\"x\":120.149192}".getBytes(StandardCharsets.UTF_8);
+        Shop shop = codecs.decode(plain, Shop.class, false).getData();
+        assertEquals(Long.valueOf(1), shop.getId());
+        assertEquals("103茶餐厅", shop.getName());
+        assertEquals(Double.valueOf(120.149192), shop.getX());
+
+        byte[] wrapped = ("{\"expireTime\":" + EXPIRE_AT + ",\"data\":{\"id\":1,\"name\":\"103茶餐厅\"}}")
+                .getBytes(StandardCharsets.UTF_8);
+        CachedValue<Shop> value = codecs.decode(wrapped, Shop.class, true);
+        assertEquals("103茶餐厅", value.getData().getName());
+        assertEquals(EXPIRE_AT, value.getExpireAt());
+    }
+
+    @Test
+    void binaryValuesReadableWhenBinaryDisabled() {
+        //滚动升级时，未打开开关的节点也要能读取新格式
+        byte[] raw = codecs(true).encode(shop(), EXPIRE_AT);
+        assertEquals(shop(), codecs(false).decode(raw, Shop.class, true).getData());
+    }
+
+    @Test
+    void unknownFormatIsTreatedAsMiss() {
+        CacheCodecs codecs = codecs(true);
+        byte[] raw = codecs.encode(shop(), EXPIRE_AT);
+
+        byte[] unknownCodec = Arrays.copyOf(raw, raw.length);
+        unknownCodec[2] = 99;
+        assertNull(codecs.decode(unknownCodec, Shop.class, true));
+
+        byte[] unknownVersion = Arrays.copyOf(raw, raw.length);
+        unknownVersion[1] = 99;
+        assertNull(codecs.decode(unknownVersion, Shop.class, true));
+
+        assertNull(codecs.decode(Arrays.copyOf(raw, 20), Shop.class, true));
+    }
+
+    private static CacheCodecs codecs(boolean binaryEnabled) {
+        CacheCodecs codecs = new CacheCodecs();
+        ReflectionTestUtils.setField(codecs, "codecs", Arrays.asList(new BinaryCacheCodec(), new JsonCacheCodec()));
+        ReflectionTestUtils.setField(codecs, "binaryEnabled", binaryEnabled);
+        ReflectionTestUtils.invokeMethod(codecs, "init");
+        return codecs;
+    }
+
+    private static Shop shop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+}
@@ -0,0 +1,58 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 热点标记的上限和过期清理，采样比例为1，访问一次即为热点
+ */
+class HotKeyDetectorTests {
+    private HotKeyDetector detector;
+
+    @BeforeEach
+    void setUp() {
+        detector = new HotKeyDetector();
+        ReflectionTestUtils.setField(detector, "enabled", true);
+        ReflectionTestUtils.setField(detector, "sampleRate", 1.0);
+        ReflectionTestUtils.setField(detector, "threshold", 1L);
+        ReflectionTestUtils.setField(detector, "topK", 10);
+        ReflectionTestUtils.setField(detector, "pinSeconds", 5L);
+        ReflectionTestUtils.setField(detector, "maxHotKeys", 2);
+    }
+
+    @Test
+    void stopsPinningNewKeysAtTheLimit() {
+        assertTrue(detector.record("cache:shop:", "cache:shop:1"));
+        assertTrue(detector.record("cache:shop:", "cache:shop:2"));
+
+        assertFalse(detector.record("cache:shop:", "cache:shop:3"));
+        //已有的热点仍然续期
+        assertTrue(detector.record("cache:shop:", "cache:shop:1"));
+        assertEquals(2, hotKeys().size());
+    }
+
+    @Test
+    void rotatePurgesExpiredKeys() {
+        detector.record("cache:shop:", "cache:shop:1");
+        detector.record("cache:shop:", "cache:shop:2");
+        //cache:shop:1的标记已经过期，之后不再被访问
+        hotKeys().put("cache:shop:1", System.currentTimeMillis() - 1);
+
+        detector.rotate();
+
+        assertEquals(1, hotKeys().size());
+        assertTrue(detector.isHot("cache:shop:2"));
+        //清理后腾出的位置可以标记新的热点
+        assertTrue(detector.record("cache:shop:", "cache:shop:3"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Long> hotKeys() {
+        return (Map<String, Long>) ReflectionTestUtils.getField(detector, "hotKeys");
+    }
+}